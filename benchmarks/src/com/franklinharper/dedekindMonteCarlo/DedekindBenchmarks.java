@@ -0,0 +1,185 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apfloat.Apfloat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.EstimationOptions;
+
+/**
+ * Throughput of the sampling, counting and statistics hot paths for n = 4..9.
+ *
+ * main runs the benchmarks with the GC profiler, so each one also reports its
+ * allocation rate (gc.alloc.rate.norm is the number of bytes allocated per operation).
+ * JMH command line options can be passed to main, e.g. "-p n=8 calculateX".
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class DedekindBenchmarks {
+
+    // The number of samples of the end to end benchmark, which therefore reports samples per second.
+    private static final int ESTIMATION_ITERATIONS = 100000;
+    // Pre-drawn samples, cycled through by calculateX and calculateY.
+    private static final int SAMPLES = 1024;
+
+    @Param( { "4", "5", "6", "7", "8", "9" } )
+    int n;
+
+    private int k;
+    private RankAdjacency adjacency;
+    private SplittableRandom random;
+    private long[] sample;
+    private long[][] samples;
+    private int nextSample;
+    private SampleHistogram histogram;
+    private Apfloat[] likelihoodRatios;
+    private Apfloat multiplier;
+    // Computed once, so that dedekindEstimation only measures the sampling and the statistics.
+    private Apfloat korshunov;
+    private BitSlicedKernel bitSlicedKernel;
+    private PushKernel pushKernel;
+
+    @Setup
+    public void setUp() {
+        // k = ( n - 1 ) / 2 when n is odd, n / 2 when n is even.
+        k = n / 2;
+        adjacency = RankAdjacency.of( n, k );
+        random = new SplittableRandom( 42 );
+        sample = new long[ adjacency.sampleWords() ];
+        samples = new long[ SAMPLES ][ adjacency.sampleWords() ];
+        histogram = new SampleHistogram( adjacency.middleRank.length );
+        likelihoodRatios = ImportanceSampling.likelihoodRatios( adjacency.middleRank.length, ImportanceSampling.ONE_HALF );
+        for( long[] s : samples ) {
+            DedekindMonteCarlo.randomSample( random, adjacency.middleRank.length, s );
+        }
+        // A realistic histogram: the (X, Y) pairs of a short run.
+        for( int i = 0; i < 100000; i++ ) {
+            DedekindMonteCarlo.randomSample( random, adjacency.middleRank.length, sample );
+            histogram.add( DedekindMonteCarlo.sampleSize( sample ),
+                DedekindMonteCarlo.calculateX( adjacency, sample ), DedekindMonteCarlo.calculateY( adjacency, sample ) );
+        }
+        bitSlicedKernel = new BitSlicedKernel( adjacency );
+        pushKernel = new PushKernel( adjacency );
+        multiplier = DedekindMonteCarlo.powerOfTwo( DedekindMonteCarlo.binomial( n, k ) );
+        korshunov = DedekindMonteCarlo.korshunov( n );
+    }
+
+    private long[] nextSample() {
+        nextSample = ( nextSample + 1 ) & ( SAMPLES - 1 );
+        return samples[ nextSample ];
+    }
+
+    @Benchmark
+    public long[] randomSample() {
+        DedekindMonteCarlo.randomSample( random, adjacency.middleRank.length, sample );
+        return sample;
+    }
+
+    @Benchmark
+    public int calculateX() {
+        return DedekindMonteCarlo.calculateX( adjacency, nextSample() );
+    }
+
+    @Benchmark
+    public int calculateY() {
+        return DedekindMonteCarlo.calculateY( adjacency, nextSample() );
+    }
+
+    /**
+     * X and Y of one sample by the pull kernel, to compare with push.
+     */
+    @Benchmark
+    public int pull() {
+        final long[] s = nextSample();
+        return DedekindMonteCarlo.calculateX( adjacency, s ) + DedekindMonteCarlo.calculateY( adjacency, s );
+    }
+
+    /**
+     * X and Y of one sample by PushKernel.
+     */
+    @Benchmark
+    public int push() {
+        pushKernel.count( nextSample() );
+        return pushKernel.X() + pushKernel.Y();
+    }
+
+    /**
+     * Draws and counts 64 samples, so it reports samples per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation( BitSlicedKernel.LANES )
+    public SampleHistogram bitSliced() {
+        bitSlicedKernel.randomSamples( random, ImportanceSampling.ONE_HALF );
+        bitSlicedKernel.count();
+        bitSlicedKernel.addTo( histogram, BitSlicedKernel.LANES );
+        return histogram;
+    }
+
+    @Benchmark
+    public int[] generateNTuplesOfRank_K() {
+        return DedekindMonteCarlo.generateNTuplesOfRank_K( n, k );
+    }
+
+    @Benchmark
+    public Apfloat sumSampleValues() {
+        return DedekindMonteCarlo.sumSampleValues( n, histogram, likelihoodRatios );
+    }
+
+    @Benchmark
+    public Apfloat standardDeviation() {
+        return DedekindMonteCarlo.standardDeviation( n, multiplier, histogram, likelihoodRatios );
+    }
+
+    @Benchmark
+    public Apfloat korshunov() {
+        return DedekindMonteCarlo.korshunov( n );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( ESTIMATION_ITERATIONS )
+    public Apfloat dedekindEstimation() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = n;
+        options.nIterations = ESTIMATION_ITERATIONS;
+        options.nWorkers = 1;
+        options.seed = 42;
+        options.console = false;
+        options.metrics = false;
+        options.korshunov = korshunov;
+        return DedekindMonteCarlo.dedekindEstimation( options ).estimate;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions( args );
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .parent( commandLine )
+            .addProfiler( GCProfiler.class );
+        if( commandLine.getIncludes().isEmpty() ) {
+            options.include( DedekindBenchmarks.class.getSimpleName() );
+        }
+        new Runner( options.build() ).run();
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Evaluates 64 independent samples per pass.
+ *
+ * Each n-tuple of the middle rank owns one word, whose bit j is set iff the
+ * n-tuple is in sample j. For an n-tuple of rank k + 1 the AND of the words of
+ * its predecessors has bit j set iff all its predecessors are in sample j, and
+ * for an n-tuple of rank k - 1 the NOR of the words of its successors has bit j
+ * set iff none of its successors are in sample j. These bits are added to
+ * bit-sliced counters, one word per bit of the count, so X, Y and |S| are counted
+ * for the 64 samples at once, without a branch per sample.
+ *
+ * The words are random words, so a pass costs one call to the generator per
+ * n-tuple of the middle rank, or at most 16 for importance sampling.
+ */
+class BitSlicedKernel {
+
+    static final int LANES = 64;
+
+    private final RankAdjacency adjacency;
+    // lanes[ i ] bit j is set iff middleRank[ i ] is in sample j
+    private final long[] lanes;
+    // Bit-sliced counters: bit j of planes[ b ] is bit b of the count of sample j.
+    private final long[] sizePlanes;
+    private final long[] xPlanes;
+    private final long[] yPlanes;
+    // The counts of the 64 samples, extracted from the planes by addTo.
+    private final int[] sizes = new int[ LANES ];
+    private final int[] xs = new int[ LANES ];
+    private final int[] ys = new int[ LANES ];
+
+    BitSlicedKernel( RankAdjacency adjacency ) {
+        this.adjacency = adjacency;
+        this.lanes = new long[ adjacency.middleRank.length ];
+        this.sizePlanes = new long[ bits( adjacency.middleRank.length ) ];
+        this.xPlanes = new long[ bits( adjacency.aboveMiddle.length ) ];
+        this.yPlanes = new long[ bits( adjacency.belowMiddle.length ) ];
+    }
+
+    /**
+     * @return the number of bits of max
+     */
+    private static int bits( int max ) {
+        return 32 - Integer.numberOfLeadingZeros( max );
+    }
+
+    /**
+     * Draws 64 new samples, each n-tuple being included with probability numerator / 2^16.
+     */
+    void randomSamples( RandomGenerator random, int inclusionNumerator ) {
+        if( inclusionNumerator == ImportanceSampling.ONE_HALF ) {
+            for( int i = 0; i < lanes.length; i++ ) {
+                lanes[ i ] = random.nextLong();
+            }
+        } else {
+            ImportanceSampling.randomSample( random, lanes.length * LANES, inclusionNumerator, lanes );
+        }
+    }
+
+    /**
+     * Sets the 64 samples: bit j of lanes[ i ] is set iff middleRank[ i ] is in sample j.
+     */
+    void setSamples( long[] lanes ) {
+        System.arraycopy( lanes, 0, this.lanes, 0, this.lanes.length );
+    }
+
+    /**
+     * Counts |S|, X and Y for the 64 samples.
+     */
+    void count() {
+        Arrays.fill( sizePlanes, 0 );
+        Arrays.fill( xPlanes, 0 );
+        Arrays.fill( yPlanes, 0 );
+        for( long lane : lanes ) {
+            increment( sizePlanes, lane );
+        }
+
+        final int[] predecessorOffsets = adjacency.predecessorOffsets;
+        final int[] predecessors = adjacency.predecessors;
+        for( int i = 0; i + 1 < predecessorOffsets.length; i++ ) {
+            long allIn = -1L;
+            for( int j = predecessorOffsets[ i ]; j < predecessorOffsets[ i + 1 ]; j++ ) {
+                allIn &= lanes[ predecessors[ j ] ];
+            }
+            increment( xPlanes, allIn );
+        }
+
+        final int[] successorOffsets = adjacency.successorOffsets;
+        final int[] successors = adjacency.successors;
+        for( int i = 0; i + 1 < successorOffsets.length; i++ ) {
+            long anyIn = 0;
+            for( int j = successorOffsets[ i ]; j < successorOffsets[ i + 1 ]; j++ ) {
+                anyIn |= lanes[ successors[ j ] ];
+            }
+            increment( yPlanes, ~anyIn );
+        }
+    }
+
+    /**
+     * Adds 1 to the counters of the samples whose bit is set in increments.
+     */
+    private static void increment( long[] planes, long increments ) {
+        long carry = increments;
+        for( int b = 0; carry != 0; b++ ) {
+            long next = planes[ b ] & carry;
+            planes[ b ] ^= carry;
+            carry = next;
+        }
+    }
+
+    private static int count( long[] planes, int lane ) {
+        int count = 0;
+        for( int b = 0; b < planes.length; b++ ) {
+            count |= (int) ( ( planes[ b ] >>> lane ) & 1 ) << b;
+        }
+        return count;
+    }
+
+    /**
+     * Sets counts[ lane ] to the count of each of the 64 samples. The planes above
+     * the highest non zero one are skipped, X and Y are usually much smaller than
+     * their maximum.
+     */
+    private static void counts( long[] planes, int[] counts ) {
+        Arrays.fill( counts, 0 );
+        int b = planes.length;
+        while( b > 0 && planes[ b - 1 ] == 0 ) {
+            b--;
+        }
+        while( --b >= 0 ) {
+            final long plane = planes[ b ];
+            for( int lane = 0; lane < LANES; lane++ ) {
+                counts[ lane ] = ( counts[ lane ] << 1 ) | (int) ( ( plane >>> lane ) & 1 );
+            }
+        }
+    }
+
+    int size( int lane ) {
+        return count( sizePlanes, lane );
+    }
+
+    int X( int lane ) {
+        return count( xPlanes, lane );
+    }
+
+    int Y( int lane ) {
+        return count( yPlanes, lane );
+    }
+
+    /**
+     * Adds the first nLanes of the 64 counted samples to histogram.
+     */
+    void addTo( SampleHistogram histogram, int nLanes ) {
+        addTo( histogram, nLanes, null );
+    }
+
+    /**
+     * Also adds them to metrics, if not null.
+     */
+    void addTo( SampleHistogram histogram, int nLanes, RunMetrics.Publisher metrics ) {
+        counts( sizePlanes, sizes );
+        counts( xPlanes, xs );
+        counts( yPlanes, ys );
+        for( int lane = 0; lane < nLanes; lane++ ) {
+            histogram.add( sizes[ lane ], xs[ lane ], ys[ lane ] );
+        }
+        if( metrics != null ) {
+            for( int lane = 0; lane < nLanes; lane++ ) {
+                metrics.add( sizes[ lane ], xs[ lane ], ys[ lane ] );
+            }
+        }
+    }
+
+}
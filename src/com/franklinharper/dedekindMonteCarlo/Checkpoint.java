@@ -0,0 +1,214 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The state of a run, from which it can be resumed or extended.
+ *
+ * The histogram of the samples is all the estimator needs, so a checkpoint is
+ * the histogram plus what is needed to continue drawing samples from fresh
+ * random streams: the algorithm, the seed and the number of streams derived so
+ * far, see RandomStreams. Its size depends on the number of distinct
+ * (|S|, X, Y) triples, not on the number of iterations.
+ *
+ * The binary format is:
+ *
+ *   int MAGIC, int FORMAT_VERSION, int n, int k, UTF algorithm, long seed,
+ *   int shard, long streamsUsed, int inclusionNumerator, long elapsedMillis,
+ *   int rankSize, long cells, cells * ( int size, int X, int Y, long count )
+ *
+ * Version 1 had no shard.
+ *
+ * The checkpoints of the shards of a run are its partial results: merge adds
+ * up their histograms, from which the estimate and the pooled variance follow
+ * as if all the samples had been drawn by a single run.
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x44454445; // "DEDE"
+    private static final int FORMAT_VERSION = 2;
+
+    int n;
+    int k;
+    String algorithm;
+    long seed;
+    // See RandomStreams.
+    int shard = RandomStreams.NO_SHARD;
+    // The number of streams of RandomStreams( algorithm, seed, shard ) used so far.
+    long streamsUsed;
+    // The probability that an n-tuple is included in the sample, in multiples of 2^-16.
+    int inclusionNumerator;
+    // The time spent by all the runs so far.
+    long elapsedMillis;
+    SampleHistogram histogram;
+
+    /**
+     * Writes the checkpoint to a temporary file next to file, forces it to the
+     * disk, then renames it to file and forces the directory, so that file always
+     * holds a complete checkpoint, even after a crash of the host or a power loss.
+     * If the checkpoint cannot be written, the temporary file is deleted and file
+     * is left as it was.
+     */
+    void write( Path file ) {
+        Path temporary = file.resolveSibling( file.getFileName() + ".tmp" );
+        boolean renamed = false;
+        try {
+            try( FileChannel channel = FileChannel.open( temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING ) ) {
+                // Not closed, the channel is.
+                DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Channels.newOutputStream( channel ) ) );
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                out.writeInt( n );
+                out.writeInt( k );
+                out.writeUTF( algorithm );
+                out.writeLong( seed );
+                out.writeInt( shard );
+                out.writeLong( streamsUsed );
+                out.writeInt( inclusionNumerator );
+                out.writeLong( elapsedMillis );
+                out.writeInt( histogram.maxSize() );
+                final long[] cells = new long[ 1 ];
+                histogram.forEach( ( size, X, Y, count ) -> cells[ 0 ]++ );
+                out.writeLong( cells[ 0 ] );
+                histogram.forEach( ( size, X, Y, count ) -> {
+                    try {
+                        out.writeInt( size );
+                        out.writeInt( X );
+                        out.writeInt( Y );
+                        out.writeLong( count );
+                    } catch( IOException e ) {
+                        throw new UncheckedIOException( e );
+                    }
+                } );
+                out.flush();
+                // Otherwise the rename could reach the disk before the data.
+                channel.force( true );
+            }
+            Files.move( temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            renamed = true;
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Cannot write the checkpoint " + file, e );
+        } catch( UncheckedIOException e ) {
+            throw new UncheckedIOException( "Cannot write the checkpoint " + file, e.getCause() );
+        } finally {
+            if( !renamed ) {
+                delete( temporary );
+            }
+        }
+        forceDirectory( file.toAbsolutePath().getParent() );
+    }
+
+    /**
+     * Deletes the temporary file of a checkpoint which could not be written.
+     */
+    private static void delete( Path temporary ) {
+        try {
+            Files.deleteIfExists( temporary );
+        } catch( IOException e ) {
+            Trace.debug( () -> "Cannot delete " + temporary + ": " + e );
+        }
+    }
+
+    /**
+     * Forces the rename of a file of directory to the disk.
+     */
+    private static void forceDirectory( Path directory ) {
+        try( FileChannel channel = FileChannel.open( directory, StandardOpenOption.READ ) ) {
+            channel.force( true );
+        } catch( IOException e ) {
+            // Some platforms, e.g. Windows, cannot open a directory: the rename is then
+            // as durable as their file system makes it.
+            Trace.debug( () -> "Cannot force the directory " + directory + ": " + e );
+        }
+    }
+
+    /**
+     * Adds up the checkpoints of the shards of a run.
+     *
+     * @return a checkpoint whose histogram holds the samples of all the shards,
+     * and whose elapsedMillis is the total time spent by the shards
+     * @throws IllegalArgumentException if the checkpoints are not distinct shards of runs with the same n and
+     * inclusion probability, or if one of several checkpoints is not that of a shard
+     */
+    static Checkpoint merge( Checkpoint... shards ) {
+        if( shards.length == 0 ) {
+            throw new IllegalArgumentException( "No shards to merge" );
+        }
+        Checkpoint merged = new Checkpoint();
+        merged.n = shards[ 0 ].n;
+        merged.k = shards[ 0 ].k;
+        merged.algorithm = shards[ 0 ].algorithm;
+        merged.seed = shards[ 0 ].seed;
+        merged.inclusionNumerator = shards[ 0 ].inclusionNumerator;
+        merged.histogram = new SampleHistogram( shards[ 0 ].histogram.maxSize() );
+        Set< String > streams = new HashSet< String >();
+        for( Checkpoint shard : shards ) {
+            if( shard.n != merged.n || shard.k != merged.k ) {
+                throw new IllegalArgumentException( "Cannot merge shards for n = " + merged.n + " and n = " + shard.n );
+            }
+            if( shard.inclusionNumerator != merged.inclusionNumerator ) {
+                throw new IllegalArgumentException( "Cannot merge shards with different inclusion probabilities" );
+            }
+            // Its streams are split from the same master generator as those of shard 0, see RandomStreams.
+            if( shard.shard == RandomStreams.NO_SHARD && shards.length > 1 ) {
+                throw new IllegalArgumentException( "Cannot merge the checkpoint of an unsharded run of seed " + shard.seed
+                    + " with other checkpoints" );
+            }
+            if( !streams.add( shard.algorithm + " " + shard.seed + " " + shard.shard ) ) {
+                throw new IllegalArgumentException( "Shard " + shard.shard + " of seed " + shard.seed + " is merged twice" );
+            }
+            merged.elapsedMillis += shard.elapsedMillis;
+            merged.histogram.merge( shard.histogram );
+        }
+        return merged;
+    }
+
+    /**
+     * @throws IllegalArgumentException if file is not a checkpoint
+     */
+    static Checkpoint read( Path file ) {
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( file ) ) ) ) {
+            if( in.readInt() != MAGIC ) {
+                throw new IllegalArgumentException( file + " is not a checkpoint" );
+            }
+            int formatVersion = in.readInt();
+            if( formatVersion < 1 || formatVersion > FORMAT_VERSION ) {
+                throw new IllegalArgumentException( file + " has the unsupported format version " + formatVersion );
+            }
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.n = in.readInt();
+            checkpoint.k = in.readInt();
+            checkpoint.algorithm = in.readUTF();
+            checkpoint.seed = in.readLong();
+            if( formatVersion >= 2 ) {
+                checkpoint.shard = in.readInt();
+            }
+            checkpoint.streamsUsed = in.readLong();
+            checkpoint.inclusionNumerator = in.readInt();
+            checkpoint.elapsedMillis = in.readLong();
+            checkpoint.histogram = new SampleHistogram( in.readInt() );
+            final long cells = in.readLong();
+            for( long i = 0; i < cells; i++ ) {
+                checkpoint.histogram.add( in.readInt(), in.readInt(), in.readInt(), in.readLong() );
+            }
+            return checkpoint;
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Cannot read the checkpoint " + file, e );
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.apfloat.Apint;
+
+/**
+ * Binomial coefficients and the n-tuples of a given rank.
+ *
+ * An n-tuple is encoded as the bits of a long, so n <= 63. The n-tuples of rank
+ * k (with k ones) are enumerated in increasing order, which is the colexicographic
+ * order, and the index of an n-tuple in its rank is its colex rank:
+ *
+ *   rank( tuple ) = sum over the set bits p_1 < p_2 < ... < p_k of ( p_i choose i )
+ */
+class Combinatorics {
+
+    // C(66, 33) is the largest central binomial coefficient which fits in a long.
+    private static final int PASCAL_ROWS = 67;
+    private static final long[][] PASCAL = new long[ PASCAL_ROWS ][];
+
+    static {
+        for( int n = 0; n < PASCAL_ROWS; n++ ) {
+            PASCAL[ n ] = new long[ n + 1 ];
+            PASCAL[ n ][ 0 ] = 1;
+            PASCAL[ n ][ n ] = 1;
+            for( int k = 1; k < n; k++ ) {
+                PASCAL[ n ][ k ] = PASCAL[ n - 1 ][ k - 1 ] + PASCAL[ n - 1 ][ k ];
+            }
+        }
+    }
+
+    private Combinatorics() {
+    }
+
+    /**
+     * @return n choose k, 0 when k < 0 or k > n
+     * @throws ArithmeticException if the result does not fit in a long
+     */
+    static long binomial( int n, int k ) {
+        if( k < 0 || k > n ) {
+            return 0;
+        }
+        if( n < PASCAL_ROWS ) {
+            return PASCAL[ n ][ k ];
+        }
+        k = Math.min( k, n - k );
+        if( k < PASCAL_ROWS ) {
+            // C(n, k) = C(n, k - 1) * (n - k + 1) / k, where each intermediate result is a binomial coefficient.
+            long result = 1;
+            for( int i = 1; i <= k; i++ ) {
+                long g = gcd( result, i );
+                result = Math.multiplyExact( result / g, ( n - i + 1 ) / ( i / g ) );
+            }
+            return result;
+        }
+        throw new ArithmeticException( "binomial( " + n + ", " + k + " ) does not fit in a long" );
+    }
+
+    /**
+     * @return n choose k, whatever its size
+     */
+    static Apint binomialApint( int n, int k ) {
+        if( k < 0 || k > n ) {
+            return Apint.ZERO;
+        }
+        if( n < PASCAL_ROWS ) {
+            return new Apint( PASCAL[ n ][ k ] );
+        }
+        k = Math.min( k, n - k );
+        Apint result = Apint.ONE;
+        for( int i = 1; i <= k; i++ ) {
+            result = result.multiply( new Apint( n - i + 1 ) ).divide( new Apint( i ) );
+        }
+        return result;
+    }
+
+    private static long gcd( long a, long b ) {
+        while( b != 0 ) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * @return the smallest n-tuple of rank k, the k lowest bits set
+     */
+    static long firstOfRank( int k ) {
+        return ( 1L << k ) - 1;
+    }
+
+    /**
+     * Gosper's hack.
+     *
+     * @return the smallest n-tuple with the same rank as tuple which is larger than tuple
+     */
+    static long nextOfSameRank( long tuple ) {
+        long lowestBit = tuple & -tuple;
+        long ripple = tuple + lowestBit;
+        return ripple | ( ( ( tuple ^ ripple ) >>> 2 ) / lowestBit );
+    }
+
+    /**
+     * Lazily enumerates the n-tuples of rank k in increasing order.
+     */
+    static PrimitiveIterator.OfLong nTuplesOfRank( final int n, final int k ) {
+        return new PrimitiveIterator.OfLong() {
+            private long remaining = k < 0 || k > n ? 0 : binomial( n, k );
+            private long next = firstOfRank( Math.max( k, 0 ) );
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public long nextLong() {
+                if( remaining == 0 ) {
+                    throw new NoSuchElementException();
+                }
+                long result = next;
+                remaining--;
+                if( remaining > 0 ) {
+                    next = nextOfSameRank( next );
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return the n-tuples of rank k in increasing order, n <= 31
+     */
+    static int[] nTuplesOfRankArray( int n, int k ) {
+        if( n > 31 ) {
+            throw new IllegalArgumentException( "n-tuples do not fit in an int for n = " + n );
+        }
+        int[] result = new int[ Math.toIntExact( binomial( n, k ) ) ];
+        if( result.length > 0 ) {
+            long tuple = firstOfRank( k );
+            result[ 0 ] = (int) tuple;
+            for( int i = 1; i < result.length; i++ ) {
+                tuple = nextOfSameRank( tuple );
+                result[ i ] = (int) tuple;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of tuple among the n-tuples of the same rank, in increasing order
+     */
+    static long colexRank( long tuple ) {
+        long rank = 0;
+        int i = 1;
+        while( tuple != 0 ) {
+            int p = Long.numberOfTrailingZeros( tuple );
+            rank += binomial( p, i );
+            i++;
+            tuple &= tuple - 1;
+        }
+        return rank;
+    }
+
+    /**
+     * The inverse of colexRank.
+     *
+     * @return the n-tuple of rank k whose index among the n-tuples of rank k is index
+     */
+    static long colexUnrank( long index, int n, int k ) {
+        long tuple = 0;
+        int p = n - 1;
+        for( int i = k; i >= 1; i-- ) {
+            while( binomial( p, i ) > index ) {
+                p--;
+            }
+            tuple |= 1L << p;
+            index -= binomial( p, i );
+            p--;
+        }
+        return tuple;
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+import org.apfloat.Apint;
+
+/**
+ * Control variates: |S|, X and Y are correlated with the value of a sample,
+ * and their expectations are known in closed form.
+ *
+ * The indicators of the sample sizes are the first control variates: a uniform
+ * S has size s with probability C(m, s) / 2^m, where m is the size of the middle
+ * rank, so the samples are post-stratified by size, each size weighted by its
+ * exact probability instead of its frequency in the samples. As S is uniform
+ * among the subsets of its size, whatever the inclusion probability, this also
+ * replaces the likelihood ratios of importance sampling. Only the sizes which
+ * are expected in at least MIN_EXPECTED_COUNT samples are stratified: a size
+ * which was not sampled would be missing from the estimate. The samples of the
+ * other sizes, the tails of the binomial distribution, whose values are the
+ * largest, are counted as by the plain estimator.
+ *
+ * Within a size s, X and Y are linear control variates, with the expectations
+ *
+ *   E[ X | s ] = a C(m - k - 1, s - k - 1) / C(m, s),  E[ Y | s ] = b C(m - n + k - 1, s) / C(m, s)
+ *
+ * where a and b are the sizes of the ranks k + 1 and k - 1: an n-tuple of rank
+ * k + 1 has k + 1 predecessors, which must all be in S, and an n-tuple of rank
+ * k - 1 has n - k + 1 successors, none of which may be in S. Their coefficients
+ * minimize the pooled variance of v - beta . ( X, Y ) within the sizes, they are
+ * fitted by least squares on the samples themselves, which biases the estimate
+ * by O( 1 / iterations ).
+ *
+ * The sums are computed from the histogram of the samples, around the means of
+ * the sizes, so doubles are precise enough for the coefficients and the
+ * variances, which only correct the exact means of the sample values.
+ */
+class ControlVariates {
+
+    // X and Y.
+    static final int COVARIATES = 2;
+
+    // The sizes which are expected in less samples are not stratified.
+    static final int MIN_EXPECTED_COUNT = 10;
+
+    // The relative size below which a pivot of the normal equations is considered 0,
+    // e.g. when a covariate does not vary, and its coefficient is then 0.
+    private static final double SINGULAR = 1e-12;
+
+    private ControlVariates() {
+    }
+
+    static class Fit {
+        Apfloat estimate;
+        // The standard deviation of one sample which gives the variance of the estimate,
+        // so that standardDeviation / sqrt( iterations ) is its standard error.
+        Apfloat standardDeviation;
+        // The coefficients of X and Y.
+        final double[] coefficients = new double[ COVARIATES ];
+    }
+
+    /**
+     * @return the expectations of X and Y for the samples of size s
+     */
+    static double[] expectations( RankAdjacency adjacency, int s ) {
+        final int m = adjacency.middleRank.length;
+        final int k = adjacency.k;
+        // The probabilities that k + 1 given n-tuples are all in S, and that n - k + 1 are all out of S.
+        double allIn = 1;
+        for( int i = 0; i <= k; i++ ) {
+            allIn *= (double) Math.max( 0, s - i ) / ( m - i );
+        }
+        double allOut = 1;
+        for( int i = 0; i < adjacency.n - k + 1; i++ ) {
+            allOut *= (double) Math.max( 0, m - s - i ) / ( m - i );
+        }
+        return new double[] { adjacency.aboveMiddle.length * allIn, adjacency.belowMiddle.length * allOut };
+    }
+
+    /**
+     * @param likelihoodRatios the likelihood ratios of the sizes, see ImportanceSampling
+     * @param inclusionProbability the probability that an n-tuple is in a sample
+     */
+    static Fit fit( RankAdjacency adjacency, Apfloat multiplier, SampleHistogram histogram, Apfloat[] likelihoodRatios,
+        double inclusionProbability ) {
+        final int n = adjacency.n;
+        final int m = adjacency.middleRank.length;
+        final long count = histogram.count();
+        final boolean[] stratified = stratifiedSizes( m, inclusionProbability, count );
+        final long[] counts = new long[ m + 1 ];
+        final Apfloat[] valueSums = new Apfloat[ m + 1 ];
+        final double[][] covariateSums = new double[ m + 1 ][ COVARIATES ];
+        final Apfloat[] tailSum = { Apint.ZERO };
+        final long[] tailCount = { 0 };
+        histogram.forEach( ( size, X, Y, cellCount ) -> {
+            Apfloat value = DedekindMonteCarlo.sampleValue( n, X, Y ).multiply( new Apint( cellCount ) );
+            if( stratified[ size ] ) {
+                counts[ size ] += cellCount;
+                valueSums[ size ] = valueSums[ size ] == null ? value : valueSums[ size ].add( value );
+                covariateSums[ size ][ 0 ] += (double) X * cellCount;
+                covariateSums[ size ][ 1 ] += (double) Y * cellCount;
+            } else {
+                tailSum[ 0 ] = tailSum[ 0 ].add( value.multiply( likelihoodRatios[ size ] ) );
+                tailCount[ 0 ] += cellCount;
+            }
+        } );
+        final Apfloat[] valueMeans = new Apfloat[ m + 1 ];
+        final double[][] covariateMeans = new double[ m + 1 ][ COVARIATES ];
+        int sizes = 0;
+        for( int s = 0; s <= m; s++ ) {
+            if( counts[ s ] > 0 ) {
+                sizes++;
+                valueMeans[ s ] = valueSums[ s ].divide( new Apfloat( counts[ s ], 20 ) );
+                for( int i = 0; i < COVARIATES; i++ ) {
+                    covariateMeans[ s ][ i ] = covariateSums[ s ][ i ] / counts[ s ];
+                }
+            }
+        }
+        final Apfloat tailMean = tailSum[ 0 ].divide( new Apfloat( count, 20 ) );
+
+        // The sums of the products of the deviations from the means of each size,
+        // and the sum of the squares of the deviations of the contributions to the mean of the tail from their mean,
+        // value * likelihood ratio for the tail sizes and 0 for the others.
+        final double[][][] products = new double[ m + 1 ][ COVARIATES ][ COVARIATES ];
+        final double[][] crossProducts = new double[ m + 1 ][ COVARIATES ];
+        final double[] squares = new double[ m + 1 ];
+        final double tailMeanValue = tailMean.doubleValue();
+        final double[] tailSquares = { ( count - tailCount[ 0 ] ) * tailMeanValue * tailMeanValue };
+        histogram.forEach( ( size, X, Y, cellCount ) -> {
+            if( !stratified[ size ] ) {
+                double value = DedekindMonteCarlo.sampleValue( n, X, Y ).multiply( likelihoodRatios[ size ] ).subtract( tailMean ).doubleValue();
+                tailSquares[ 0 ] += value * value * cellCount;
+                return;
+            }
+            double value = DedekindMonteCarlo.sampleValue( n, X, Y ).subtract( valueMeans[ size ] ).doubleValue();
+            double[] c = { X - covariateMeans[ size ][ 0 ], Y - covariateMeans[ size ][ 1 ] };
+            squares[ size ] += value * value * cellCount;
+            for( int i = 0; i < COVARIATES; i++ ) {
+                crossProducts[ size ][ i ] += c[ i ] * value * cellCount;
+                for( int j = 0; j < COVARIATES; j++ ) {
+                    products[ size ][ i ][ j ] += c[ i ] * c[ j ] * cellCount;
+                }
+            }
+        } );
+        final double[][] pooledProducts = new double[ COVARIATES ][ COVARIATES ];
+        final double[] pooledCrossProducts = new double[ COVARIATES ];
+        for( int s = 0; s <= m; s++ ) {
+            for( int i = 0; i < COVARIATES; i++ ) {
+                pooledCrossProducts[ i ] += crossProducts[ s ][ i ];
+                for( int j = 0; j < COVARIATES; j++ ) {
+                    pooledProducts[ i ][ j ] += products[ s ][ i ][ j ];
+                }
+            }
+        }
+        final Fit fit = new Fit();
+        final double[] beta = fit.coefficients;
+        solve( pooledProducts, pooledCrossProducts, beta );
+
+        // The residual sums of squares of the sizes, which cannot be negative, except by rounding.
+        final double[] residuals = new double[ m + 1 ];
+        double pooledResiduals = 0;
+        long pooledCount = 0;
+        for( int s = 0; s <= m; s++ ) {
+            double residual = squares[ s ];
+            for( int i = 0; i < COVARIATES; i++ ) {
+                residual -= 2 * beta[ i ] * crossProducts[ s ][ i ];
+                for( int j = 0; j < COVARIATES; j++ ) {
+                    residual += beta[ i ] * beta[ j ] * products[ s ][ i ][ j ];
+                }
+            }
+            residuals[ s ] = Math.max( 0, residual );
+            pooledResiduals += residuals[ s ];
+            pooledCount += counts[ s ];
+        }
+        final double pooledVariance = pooledCount > sizes + COVARIATES ? pooledResiduals / ( pooledCount - sizes - COVARIATES ) : 0;
+
+        // multiplier * P( |S| = s ) = C(m, s) for a uniform S.
+        Apfloat sum = tailMean.multiply( multiplier );
+        // Var( estimate ) / multiplier^2 = sum( P( |S| = s )^2 * variance / count ) over the stratified sizes
+        // + Var( the contribution of the tail ) / iterations
+        // Given the number of samples of each size, the means of the sizes are independent, and the
+        // stratified part of the estimate is then unbiased up to O( 1 / iterations ), so the covariance
+        // between the tail and the stratified sizes is also O( 1 / iterations ) and is left out.
+        double variance = tailSquares[ 0 ] / count / count;
+        for( int s = 0; s <= m; s++ ) {
+            if( counts[ s ] > 0 ) {
+                final Apint sizeWeight = Combinatorics.binomialApint( m, s );
+                final double[] expectations = expectations( adjacency, s );
+                double correction = 0;
+                for( int i = 0; i < COVARIATES; i++ ) {
+                    correction += beta[ i ] * ( covariateMeans[ s ][ i ] - expectations[ i ] );
+                }
+                sum = sum.add( valueMeans[ s ].subtract( new Apfloat( correction ) ).multiply( sizeWeight ) );
+                final double probability = new Apfloat( sizeWeight.toString(), 20 ).divide( multiplier ).doubleValue();
+                final double sizeVariance = counts[ s ] > 1 ? residuals[ s ] / ( counts[ s ] - 1 ) : pooledVariance;
+                variance += probability * probability * sizeVariance / counts[ s ];
+            }
+        }
+        fit.estimate = sum;
+        fit.standardDeviation = variance == 0
+            ? new Apfloat( 0.0 )
+            : ApfloatMath.sqrt( new Apfloat( variance * count ) ).multiply( multiplier );
+        return fit;
+    }
+
+    /**
+     * @return for each size s, whether at least MIN_EXPECTED_COUNT of the samples are expected to have size s
+     */
+    static boolean[] stratifiedSizes( int m, double inclusionProbability, long count ) {
+        final boolean[] stratified = new boolean[ m + 1 ];
+        // log( C(m, s) ), from log( C(m, 0) ) = 0
+        double logBinomial = 0;
+        for( int s = 0; s <= m; s++ ) {
+            if( s > 0 ) {
+                logBinomial += Math.log( m - s + 1 ) - Math.log( s );
+            }
+            final double logProbability = logBinomial + s * Math.log( inclusionProbability ) + ( m - s ) * Math.log( 1 - inclusionProbability );
+            stratified[ s ] = Math.log( count ) + logProbability >= Math.log( MIN_EXPECTED_COUNT );
+        }
+        return stratified;
+    }
+
+    /**
+     * Solves the symmetric system a x = b by Gauss-Jordan elimination, with x[ i ] = 0
+     * for the pivots which are 0, so that the covariates which do not vary, or which
+     * are combinations of the others, are left out.
+     */
+    private static void solve( double[][] a, double[] b, double[] x ) {
+        final int size = b.length;
+        final double[][] m = new double[ size ][ size + 1 ];
+        for( int i = 0; i < size; i++ ) {
+            System.arraycopy( a[ i ], 0, m[ i ], 0, size );
+            m[ i ][ size ] = b[ i ];
+        }
+        final boolean[] used = new boolean[ size ];
+        for( int i = 0; i < size; i++ ) {
+            // The pivots of a matrix of sums of squares are >= 0.
+            if( !( m[ i ][ i ] > SINGULAR * a[ i ][ i ] ) ) {
+                continue;
+            }
+            used[ i ] = true;
+            for( int r = 0; r < size; r++ ) {
+                if( r != i ) {
+                    final double factor = m[ r ][ i ] / m[ i ][ i ];
+                    for( int c = i; c <= size; c++ ) {
+                        m[ r ][ c ] -= factor * m[ i ][ c ];
+                    }
+                }
+            }
+        }
+        for( int i = 0; i < size; i++ ) {
+            x[ i ] = used[ i ] ? m[ i ][ size ] / m[ i ][ i ] : 0;
+        }
+    }
+
+}
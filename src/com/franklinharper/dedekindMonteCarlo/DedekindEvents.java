@@ -0,0 +1,75 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for the phases of an estimation, e.g.
+ *
+ *   java -XX:StartFlightRecording=filename=run.jfr ...
+ *   jfr print --categories Dedekind run.jfr
+ *
+ * When they are not enabled in a recording, begin and commit cost next to nothing.
+ */
+final class DedekindEvents {
+
+    private static final String CATEGORY = "Dedekind";
+
+    private DedekindEvents() {
+    }
+
+    @Name( "com.franklinharper.dedekind.RankGeneration" )
+    @Label( "Rank Generation" )
+    @Category( CATEGORY )
+    @Description( "Generation of the n-tuples of the middle ranks and of their adjacency" )
+    static class RankGeneration extends Event {
+        @Label( "n" )
+        int n;
+        @Label( "k" )
+        int k;
+    }
+
+    @Name( "com.franklinharper.dedekind.SamplingBatch" )
+    @Label( "Sampling Batch" )
+    @Category( CATEGORY )
+    @Description( "A batch of samples drawn and counted by all the workers" )
+    static class SamplingBatch extends Event {
+        @Label( "n" )
+        int n;
+        @Label( "Iterations" )
+        long iterations;
+    }
+
+    @Name( "com.franklinharper.dedekind.Statistics" )
+    @Label( "Statistics" )
+    @Category( CATEGORY )
+    @Description( "Computation of the estimate and of its standard deviation from the histogram of the samples" )
+    static class Statistics extends Event {
+        @Label( "n" )
+        int n;
+        @Label( "Iterations" )
+        long iterations;
+    }
+
+    @Name( "com.franklinharper.dedekind.Korshunov" )
+    @Label( "Korshunov" )
+    @Category( CATEGORY )
+    @Description( "Computation of Korshunov's asymptotic approximation of D(n)" )
+    static class Korshunov extends Event {
+        @Label( "n" )
+        int n;
+    }
+
+    @Name( "com.franklinharper.dedekind.Checkpoint" )
+    @Label( "Checkpoint" )
+    @Category( CATEGORY )
+    @Description( "Writing the state of a run to its checkpoint file" )
+    static class Checkpoint extends Event {
+        @Label( "Iterations" )
+        long iterations;
+    }
+
+}
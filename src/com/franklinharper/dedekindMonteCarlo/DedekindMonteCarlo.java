@@ -1,9 +1,21 @@
 package com.franklinharper.dedekindMonteCarlo;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.random.RandomGenerator;
 
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
@@ -15,13 +27,6 @@ public class DedekindMonteCarlo {
     // TODO
     // send bill 5 days ( tues., wed, 1/2 thur., Fri May 16, Mon. 19, Tues. 20, Wed. 21)
 
-    @SuppressWarnings ( "unused")
-    private static final int OFF = 0;
-    private static final int INFO = 1;
-    private static final int DEBUG = 2;
-
-    private static final int TRACE_LEVEL = INFO;
-
     private static final String version = "0.9.3";
 
     static final Apfloat[] DEDEKIND_KNOWN_VALUES = {
@@ -37,18 +42,209 @@ public class DedekindMonteCarlo {
 
     public static final Apint TWO = new Apint( 2 );
 
-    public static void main( String[] args ) {
-//        for( int n = 2; n <= 9; n++ ) {
-//            DedekindMonteCarlo.dedekindEstimation( n, 1000000 );
-//        }
+    // By default, the number of times a result line is printed during an estimation, including the final one.
+    private static final int PROGRESS_REPORTS = 10;
+    // The iterations between two evaluations of the stopping rule when the number of iterations is not fixed.
+    static final long DEFAULT_BATCH_ITERATIONS = 1000000;
+    // The independent and the antithetic samples timed by antitheticCostRatio, of each kind.
+    static final long CALIBRATION_ITERATIONS = 1 << 12;
+    // The precision, in digits, of the multipliers 2^(n choose k) and of korshunov( n ).
+    static final long POWER_OF_TWO_PRECISION = 100;
+
+    /**
+     * Usage:
+     *
+     *   DedekindMonteCarlo [ n iterations [ checkpointFile ] ]
+     *   DedekindMonteCarlo shard seed shardNumber n iterations shardFile
+     *   DedekindMonteCarlo merge shardFile...
+     *   DedekindMonteCarlo exact n
+     *   DedekindMonteCarlo sweep jobFile
+     *   DedekindMonteCarlo qmc n iterations
+     *   DedekindMonteCarlo large n iterations [ sampleFile ]
+     *   DedekindMonteCarlo stratified n iterations
+     *
+     * With a checkpoint file the run is saved to it every minute, and resumed
+     * from it when it exists, up to the given number of iterations in total.
+     * A shard is a checkpointed run, the shards of an estimate use the same seed
+     * and distinct shard numbers, and may run in different processes or machines.
+     * merge prints the result of all the samples of the shards.
+     * exact prints the expectation of the estimator, see dedekindExact.
+     * sweep runs the estimations listed in jobFile concurrently and prints
+     * their results as one table, see Sweep.
+     * qmc estimates with quasi-random samples, see quasiRandomEstimation.
+     * large estimates with samples kept off the heap, in sampleFile if given,
+     * for n up to 63, see streamingEstimation.
+     * stratified estimates with samples stratified by their size, see stratifiedEstimation.
+     *
+     * The system property dedekind.results=file sends the progress and the
+     * result records of an estimation to file, as CSV when its name ends with
+     * .csv, as JSON Lines otherwise, see ResultSink.
+     */
+    public static void main( String[] args ) throws IOException {
+        String results = System.getProperty( "dedekind.results" );
+        if( results == null ) {
+            run( args, null );
+            return;
+        }
+        try( Writer out = Files.newBufferedWriter( Paths.get( results ) ) ) {
+            run( args, results.endsWith( ".csv" ) ? new ResultSink.Csv( out ) : new ResultSink.JsonLines( out ) );
+        }
+    }
 
-        DedekindResult result = dedekindEstimation( 7, 1000000 );
+    private static void run( String[] args, ResultSink resultSink ) {
+        if( args.length == 0 ) {
+            args = new String[] { "7", "1000000" };
+        }
+        if( args[ 0 ].equals( "exact" ) ) {
+            dedekindExact( Integer.parseInt( args[ 1 ] ) );
+            return;
+        }
+        if( args[ 0 ].equals( "merge" ) ) {
+            Path[] shardFiles = new Path[ args.length - 1 ];
+            for( int i = 1; i < args.length; i++ ) {
+                shardFiles[ i - 1 ] = Paths.get( args[ i ] );
+            }
+            merge( shardFiles );
+            return;
+        }
+        if( args[ 0 ].equals( "sweep" ) ) {
+            Sweep.writeTable( Sweep.run( Sweep.readJobs( Paths.get( args[ 1 ] ) ), Runtime.getRuntime().availableProcessors() ),
+                resultSink );
+            return;
+        }
+        EstimationOptions options = new EstimationOptions();
+        options.resultSink = resultSink;
+        int arg = 0;
+        if( args[ 0 ].equals( "qmc" ) ) {
+            options.samplingMode = SamplingMode.QUASI_RANDOM;
+            arg = 1;
+        } else if( args[ 0 ].equals( "stratified" ) ) {
+            options.samplingMode = SamplingMode.STRATIFIED;
+            arg = 1;
+        } else if( args[ 0 ].equals( "large" ) ) {
+            options.samplingMode = SamplingMode.STREAMING;
+            options.n = Integer.parseInt( args[ 1 ] );
+            options.nIterations = Long.parseLong( args[ 2 ] );
+            if( args.length > 3 ) {
+                options.sampleFile = Paths.get( args[ 3 ] );
+            }
+            dedekindEstimation( options );
+            return;
+        } else if( args[ 0 ].equals( "shard" ) ) {
+            options.seed = Long.parseLong( args[ 1 ] );
+            options.shard = Integer.parseInt( args[ 2 ] );
+            arg = 3;
+        }
+        options.n = Integer.parseInt( args[ arg ] );
+        options.nIterations = Long.parseLong( args[ arg + 1 ] );
+        if( args.length > arg + 2 ) {
+            options.checkpointFile = Paths.get( args[ arg + 2 ] );
+            options.resume = true;
+        }
+        dedekindEstimation( options );
     }
 
     public static DedekindResult dedekindEstimation( int n, int nIterations ) {
+        EstimationOptions options = new EstimationOptions();
+        options.n = n;
+        options.nIterations = nIterations;
+        return dedekindEstimation( options );
+    }
+
+    /**
+     * Samples until the relative standard error of the estimate, standardDeviation / ( sqrt( iterations ) * estimate ),
+     * is at most targetRelativeStandardError, or until timeBudgetMillis have elapsed.
+     * A value <= 0 disables the corresponding limit, at least one of them must be enabled.
+     * The stopping rule is evaluated every DEFAULT_BATCH_ITERATIONS iterations.
+     *
+     * @return the result, its stopReason tells which limit was reached
+     */
+    public static DedekindResult dedekindEstimation( int n, double targetRelativeStandardError, long timeBudgetMillis ) {
+        if( !( targetRelativeStandardError > 0 ) && timeBudgetMillis <= 0 ) {
+            throw new IllegalArgumentException( "Either a target relative standard error or a time budget is required" );
+        }
+        EstimationOptions options = new EstimationOptions();
+        options.n = n;
+        options.nIterations = Long.MAX_VALUE;
+        options.batchIterations = DEFAULT_BATCH_ITERATIONS;
+        options.targetRelativeStandardError = targetRelativeStandardError;
+        options.timeBudgetMillis = timeBudgetMillis;
+        return dedekindEstimation( options );
+    }
+
+    /**
+     * Runs the Monte Carlo estimation on options.nWorkers threads.
+     *
+     * Each worker draws its samples from its own stream, see randomStreams, and
+     * always handles the same slice of the iterations. So for a given algorithm,
+     * seed and worker count the result does not depend on thread scheduling.
+     *
+     * In the IMPORTANCE sampling mode the n-tuples are included in S with
+     * probability options.inclusionProbability, or with the probability chosen
+     * by a pilot run of options.pilotIterations uniform samples, and each sample
+     * is weighted by its likelihood ratio, see ImportanceSampling.
+     *
+     * The iterations are run in batches of options.batchIterations, by default a
+     * tenth of options.nIterations. After each batch the statistics are updated
+     * from the histogram of the samples and the run stops when options.nIterations,
+     * options.targetRelativeStandardError or options.timeBudgetMillis is reached.
+     * Otherwise a progress line is printed.
+     *
+     * When options.checkpointFile is set the state of the run is saved to it at
+     * the end of the batches which end options.checkpointIntervalMillis after
+     * the previous checkpoint, and at the end of the run. Unless
+     * options.batchIterations is set, the batches then have at most
+     * DEFAULT_BATCH_ITERATIONS iterations, and no more than the measured rate
+     * runs in options.checkpointIntervalMillis, so that a checkpoint is not
+     * delayed by a long batch. With options.resume a
+     * run continues from an existing checkpoint, up to options.nIterations in
+     * total, so a finished run can be extended by resuming it with more iterations.
+     * The algorithm, seed and inclusion probability of the checkpoint are used.
+     *
+     * With options.controlVariates the estimate and its standard deviation are
+     * those of the control variate estimator, see ControlVariates, and the
+     * result tells the variance reduction factor achieved.
+     *
+     * With options.antithetic each sample S is drawn together with its complement
+     * in the middle rank, see SamplingWorker.sampleAntithetic, the estimate is the
+     * mean of the pairs, and the standard deviation is that of the pairs, see
+     * antitheticStandardDeviation. The variance reduction of the result is then
+     * the variance of the samples over that of the pairs times 2, i.e. per sample
+     * evaluated, and the time normalized variance reduction of the result weighs
+     * it by the time of an independent sample with options.kernel over that of an
+     * antithetic sample, measured by antitheticCostRatio before the run. The
+     * iterations are rounded up to whole pairs.
+     *
+     * The progress lines and the result are also sent to options.resultSink.
+     * With options.metrics the run can be followed while it goes on, from JMX,
+     * see DedekindRunMXBean.
+     *
+     * The QUASI_RANDOM sampling mode is a different estimator, see quasiRandomEstimation,
+     * the STREAMING sampling mode is for large n, see streamingEstimation, and the
+     * STRATIFIED sampling mode is a different estimator, see stratifiedEstimation.
+     */
+    public static DedekindResult dedekindEstimation( EstimationOptions options ) {
+        if( options.antithetic && ( options.samplingMode != SamplingMode.UNIFORM || options.controlVariates
+            || options.checkpointFile != null ) ) {
+            throw new IllegalArgumentException( "Antithetic sampling only supports uniform samples, without control variates or checkpoints" );
+        }
+        if( options.samplingMode == SamplingMode.QUASI_RANDOM ) {
+            return quasiRandomEstimation( options );
+        }
+        if( options.samplingMode == SamplingMode.STREAMING ) {
+            return streamingEstimation( options );
+        }
+        if( options.samplingMode == SamplingMode.STRATIFIED ) {
+            return stratifiedEstimation( options );
+        }
+        final int n = options.n;
+        final long nIterations = options.nIterations;
+        final int nWorkers = options.nWorkers;
         final long startMillis = System.currentTimeMillis();
         final String columnHeaders = columnHeaders();
-        info( columnHeaders );
+        if( options.console ) {
+            Trace.info( () -> columnHeaders );
+        }
 
         final int k;
         if( isOdd( n ) ) {
@@ -57,150 +253,974 @@ public class DedekindMonteCarlo {
             k = n / 2;
         }
 
-        final Apint multiplier = ApintMath.pow( TWO, binomial( n, k ) );;
+        final Apfloat multiplier = powerOfTwo( binomial( n, k ) );
 
-        debug( "n: " + n );
-        debug( "k: " + k );
-        debug( String.format( "iterations: %4.0E", (double) nIterations ) );
-        debug( "multiplier: " + multiplier );
+        Trace.debug( () -> "n: " + n );
+        Trace.debug( () -> "k: " + k );
+        Trace.debug( () -> String.format( "iterations: %4.0E", (double) nIterations ) );
+        Trace.debug( () -> "workers: " + nWorkers );
+        Trace.debug( () -> "random algorithm: " + options.randomAlgorithm );
+        Trace.debug( () -> "seed: " + options.seed );
+        Trace.debug( () -> "shard: " + options.shard );
+        Trace.debug( () -> "multiplier: " + multiplier );
 
-        final Random random = new Random();
         // The middle rank contains n choose k elements
-        final int[] middleRank = generateNTuplesOfRank_K( n, k );
-        final int[] aboveMiddle = generateNTuplesOfRank_K( n, k + 1 );
-        final int[] belowMiddle = generateNTuplesOfRank_K( n, k - 1 );
-        final int showInfo = nIterations / 10;
+        final RankAdjacency adjacency = RankAdjacency.of( n, k );
+        final DedekindResult result = new DedekindResult();
+        final Apfloat korshunov = options.korshunov != null ? options.korshunov : korshunov( n );
+
+        final int rankSize = adjacency.middleRank.length;
+        Checkpoint checkpoint = null;
+        if( options.resume && options.checkpointFile != null && Files.exists( options.checkpointFile ) ) {
+            checkpoint = Checkpoint.read( options.checkpointFile );
+            if( checkpoint.n != n || checkpoint.k != k ) {
+                throw new IllegalArgumentException( options.checkpointFile + " is a checkpoint for n = " + checkpoint.n + ", not " + n );
+            }
+            final long resumedIterations = checkpoint.histogram.count();
+            Trace.debug( () -> "resuming " + options.checkpointFile + " after " + resumedIterations + " iterations" );
+        }
+        final String algorithm = checkpoint == null ? options.randomAlgorithm : checkpoint.algorithm;
+        final long seed = checkpoint == null ? options.seed : checkpoint.seed;
+        final int shard = checkpoint == null ? options.shard : checkpoint.shard;
+        final long previousMillis = checkpoint == null ? 0 : checkpoint.elapsedMillis;
+        final RandomStreams randomStreams = new RandomStreams( algorithm, seed, shard );
+        if( checkpoint != null ) {
+            randomStreams.skip( checkpoint.streamsUsed );
+        }
+        final SamplingWorker[] workers = new SamplingWorker[ nWorkers ];
+        for( int w = 0; w < nWorkers; w++ ) {
+            workers[ w ] = new SamplingWorker( adjacency, randomStreams.next() );
+        }
+        if( checkpoint != null ) {
+            // The samples of the previous runs are counted once, by the first worker.
+            workers[ 0 ].histogram = checkpoint.histogram;
+        }
+
+        int inclusionNumerator = ImportanceSampling.ONE_HALF;
+        SampleHistogram histogram = new SampleHistogram( rankSize );
+        final RunMetrics metrics = options.metrics
+            ? new RunMetrics( n, nIterations, Math.toIntExact( binomial( n, k ) ), korshunov )
+            : null;
+        final ExecutorService executor = options.executor != null ? options.executor : Executors.newFixedThreadPool( nWorkers );
+        try {
+            if( checkpoint != null ) {
+                inclusionNumerator = checkpoint.inclusionNumerator;
+            } else if( options.samplingMode == SamplingMode.IMPORTANCE ) {
+                if( options.pilotIterations > 0 ) {
+                    SampleHistogram pilot = runRound( executor, workers, options.pilotIterations );
+                    inclusionNumerator = ImportanceSampling.pilotNumerator( n, pilot );
+                    // The pilot samples were drawn with p = 1/2, they are not part of the estimate.
+                    for( SamplingWorker worker : workers ) {
+                        worker.histogram = new SampleHistogram( rankSize );
+                    }
+                } else {
+                    inclusionNumerator = ImportanceSampling.toNumerator( options.inclusionProbability );
+                }
+                final double inclusionProbability = ImportanceSampling.toProbability( inclusionNumerator );
+                Trace.debug( () -> "inclusion probability: " + inclusionProbability );
+            }
+            for( SamplingWorker worker : workers ) {
+                worker.inclusionNumerator = inclusionNumerator;
+                worker.kernel = options.kernel;
+                worker.antithetic = options.antithetic;
+            }
+            final Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( rankSize, inclusionNumerator );
+            result.inclusionProbability = ImportanceSampling.toProbability( inclusionNumerator );
+            if( metrics != null ) {
+                final double[] doubleLikelihoodRatios = new double[ rankSize + 1 ];
+                for( int s = 0; s <= rankSize; s++ ) {
+                    doubleLikelihoodRatios[ s ] = likelihoodRatios[ s ].doubleValue();
+                }
+                for( SamplingWorker worker : workers ) {
+                    worker.metrics = metrics.new Publisher( doubleLikelihoodRatios );
+                }
+                if( checkpoint != null ) {
+                    // The workers only publish their new samples.
+                    metrics.add( checkpoint.histogram, doubleLikelihoodRatios );
+                    metrics.setResumedIterations( checkpoint.histogram.count() );
+                }
+                metrics.register();
+            }
+
+            final double antitheticCostRatio = options.antithetic ? antitheticCostRatio( adjacency, options.kernel, seed ) : Double.NaN;
+            long batchIterations = options.batchIterations > 0
+                ? options.batchIterations
+                : Math.max( 1, nIterations / PROGRESS_REPORTS );
+            if( options.checkpointFile != null && options.batchIterations <= 0 ) {
+                // Checkpoints are only written at the end of a batch.
+                batchIterations = Math.min( batchIterations, DEFAULT_BATCH_ITERATIONS );
+            }
+            result.n = n;
+            result.korshunov = korshunov;
+            result.seed = seed;
+            final long resumedIterations = checkpoint == null ? 0 : checkpoint.histogram.count();
+            long done = resumedIterations;
+            long lastCheckpointMillis = System.currentTimeMillis();
+            while( true ) {
+                DedekindEvents.SamplingBatch batchEvent = new DedekindEvents.SamplingBatch();
+                batchEvent.begin();
+                histogram = runRound( executor, workers, Math.max( 0, Math.min( batchIterations, nIterations - done ) ) );
+                batchEvent.n = n;
+                batchEvent.iterations = histogram.count() - done;
+                batchEvent.commit();
+                done = histogram.count();
+                result.nIterations = done;
+                result.elapsedMillis = previousMillis + System.currentTimeMillis() - startMillis;
+                result.samplesPerSecond = ( done - resumedIterations ) * 1000.0 / Math.max( 1, System.currentTimeMillis() - startMillis );
+                if( done > 0 ) {
+                    // The histograms only grow with the number of distinct (|S|, X, Y) triples,
+                    // so the statistics of a batch do not depend on the number of iterations so far.
+                    DedekindEvents.Statistics statisticsEvent = new DedekindEvents.Statistics();
+                    statisticsEvent.begin();
+                    result.estimate = estimate( n, multiplier, histogram, likelihoodRatios );
+                    // The standard deviation of a single sample is unknown, relativeStandardError stays infinite.
+                    if( done > 1 ) {
+                        result.standardDeviation = standardDeviation( n, multiplier, histogram, likelihoodRatios );
+                        if( options.antithetic ) {
+                            final double plainStandardDeviation = result.standardDeviation.doubleValue();
+                            result.standardDeviation = antitheticStandardDeviation( n, multiplier, histogram, likelihoodRatios );
+                            final double standardDeviation = result.standardDeviation.doubleValue();
+                            result.varianceReduction = plainStandardDeviation * plainStandardDeviation / ( standardDeviation * standardDeviation );
+                            result.timeNormalizedVarianceReduction = result.varianceReduction / antitheticCostRatio;
+                        }
+                        if( options.controlVariates ) {
+                            final ControlVariates.Fit fit = ControlVariates.fit( adjacency, multiplier, histogram, likelihoodRatios,
+                                result.inclusionProbability );
+                            Trace.debug( () -> "control variate coefficients: " + Arrays.toString( fit.coefficients ) );
+                            final double plainStandardDeviation = result.standardDeviation.doubleValue();
+                            final double standardDeviation = fit.standardDeviation.doubleValue();
+                            result.varianceReduction = plainStandardDeviation * plainStandardDeviation / ( standardDeviation * standardDeviation );
+                            result.estimate = fit.estimate;
+                            result.standardDeviation = fit.standardDeviation;
+                        }
+                        result.relativeStandardError = relativeStandardError( result.estimate, result.standardDeviation, done );
+                    }
+                    statisticsEvent.n = n;
+                    statisticsEvent.iterations = done;
+                    statisticsEvent.commit();
+                }
+                if( done >= nIterations ) {
+                    result.stopReason = StopReason.ITERATIONS;
+                } else if( options.targetRelativeStandardError > 0 && result.relativeStandardError <= options.targetRelativeStandardError ) {
+                    result.stopReason = StopReason.PRECISION;
+                } else if( options.timeBudgetMillis > 0 && System.currentTimeMillis() - startMillis >= options.timeBudgetMillis ) {
+                    result.stopReason = StopReason.TIME_BUDGET;
+                }
+                if( options.checkpointFile != null
+                    && ( result.stopReason != null || System.currentTimeMillis() - lastCheckpointMillis >= options.checkpointIntervalMillis ) ) {
+                    writeCheckpoint( options.checkpointFile, n, k, randomStreams, inclusionNumerator, result.elapsedMillis, histogram );
+                    // The workers continue with fresh streams, as a run resumed from this checkpoint would.
+                    for( SamplingWorker worker : workers ) {
+                        worker.random = randomStreams.next();
+                    }
+                    lastCheckpointMillis = System.currentTimeMillis();
+                }
+                if( result.stopReason != null ) {
+                    break;
+                }
+                if( options.checkpointFile != null && options.batchIterations <= 0 && options.checkpointIntervalMillis > 0 ) {
+                    // At the measured rate, the next batch ends within the checkpoint interval.
+                    batchIterations = Math.max( 1, Math.min( batchIterations,
+                        (long) ( result.samplesPerSecond * options.checkpointIntervalMillis / 1000 ) ) );
+                }
+                if( done > 1 ) {
+                    if( options.console ) {
+                        System.out.println( result );
+                    }
+                    if( options.resultSink != null ) {
+                        options.resultSink.accept( ResultSink.PROGRESS, result );
+                    }
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while sampling", e );
+        } catch( ExecutionException e ) {
+            throw new IllegalStateException( "Sampling failed", e.getCause() );
+        } finally {
+            if( options.executor == null ) {
+                executor.shutdownNow();
+            }
+            if( metrics != null ) {
+                metrics.unregister();
+            }
+        }
+        result.elapsedMillis = previousMillis + System.currentTimeMillis() - startMillis;
+        Trace.debug( () -> "stop reason: " + result.stopReason );
+        if( options.console ) {
+            Trace.debug( () -> columnHeaders );
+            System.out.println( result );
+        }
+        if( options.resultSink != null ) {
+            options.resultSink.accept( ResultSink.RESULT, result );
+        }
+        return result;
+    }
+
+    /**
+     * Draws options.replicates independent replicates of 2^r quasi-random samples,
+     * see QuasiRandomSampling, on options.nWorkers threads, where 2^r is the largest
+     * power of 2 such that all the replicates have at most options.nIterations
+     * samples. The estimate is the mean of the estimates of the replicates, and
+     * its standard error is their standard deviation / sqrt( replicates ).
+     * The standardDeviation of the result is that standard error * sqrt( iterations ),
+     * so that relativeStandardError has its usual meaning.
+     *
+     * There are no progress lines, checkpoints, shards, live metrics or stopping
+     * rules other than the number of iterations.
+     *
+     * @throws IllegalArgumentException if there are less than 2 replicates, or less iterations than replicates,
+     * or a checkpoint file, a shard or a stopping rule other than the number of iterations is set
+     */
+    private static DedekindResult quasiRandomEstimation( EstimationOptions options ) {
+        final int n = options.n;
+        final int replicates = options.replicates;
+        if( replicates < 2 || options.nIterations < replicates ) {
+            throw new IllegalArgumentException( "Quasi-random sampling needs at least 2 replicates and one iteration per replicate: "
+                + replicates + " replicates, " + options.nIterations + " iterations" );
+        }
+        if( options.checkpointFile != null || options.shard != RandomStreams.NO_SHARD
+            || options.targetRelativeStandardError > 0 || options.timeBudgetMillis > 0 ) {
+            throw new IllegalArgumentException( "Quasi-random sampling only supports a fixed number of iterations" );
+        }
+        final long startMillis = System.currentTimeMillis();
+        final int k = isOdd( n ) ? ( n - 1 ) / 2 : n / 2;
+        final RankAdjacency adjacency = RankAdjacency.of( n, k );
+        final int rankSize = adjacency.middleRank.length;
+        final int log2Points = Math.min( QuasiRandomSampling.MAX_LOG2_POINTS, 63 - Long.numberOfLeadingZeros( options.nIterations / replicates ) );
+        final QuasiRandomSampling sampling = new QuasiRandomSampling( adjacency, log2Points );
+        Trace.debug( () -> "replicates: " + replicates + " of 2^" + log2Points + " samples" );
+
+        final RandomStreams randomStreams = new RandomStreams( options.randomAlgorithm, options.seed );
+        final List< Callable< SampleHistogram > > tasks = new ArrayList< Callable< SampleHistogram > >( replicates );
+        for( int r = 0; r < replicates; r++ ) {
+            final RandomGenerator random = randomStreams.next();
+            tasks.add( () -> {
+                SampleHistogram histogram = new SampleHistogram( rankSize );
+                sampling.replicate( random, histogram );
+                return histogram;
+            } );
+        }
+        final Apfloat multiplier = powerOfTwo( binomial( n, k ) );
+        final Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( rankSize, ImportanceSampling.ONE_HALF );
+        final Apfloat[] estimates = new Apfloat[ replicates ];
+        final ExecutorService executor = options.executor != null ? options.executor : Executors.newFixedThreadPool( options.nWorkers );
+        try {
+            DedekindEvents.SamplingBatch batchEvent = new DedekindEvents.SamplingBatch();
+            batchEvent.begin();
+            List< Future< SampleHistogram > > histograms = executor.invokeAll( tasks );
+            for( int r = 0; r < replicates; r++ ) {
+                estimates[ r ] = estimate( n, multiplier, histograms.get( r ).get(), likelihoodRatios );
+            }
+            batchEvent.n = n;
+            batchEvent.iterations = replicates * sampling.points();
+            batchEvent.commit();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while sampling", e );
+        } catch( ExecutionException e ) {
+            throw new IllegalStateException( "Sampling failed", e.getCause() );
+        } finally {
+            if( options.executor == null ) {
+                executor.shutdownNow();
+            }
+        }
+
+        Apfloat sum = Apfloat.ZERO;
+        for( Apfloat estimate : estimates ) {
+            sum = sum.add( estimate );
+        }
+        final Apfloat mean = sum.divide( new Apfloat( replicates, 20 ) );
+        Apfloat sumOfSquares = Apfloat.ZERO;
+        for( Apfloat estimate : estimates ) {
+            sumOfSquares = sumOfSquares.add( estimate.subtract( mean ).multiply( estimate.subtract( mean ) ) );
+        }
+        final long iterations = replicates * sampling.points();
+        final DedekindResult result = new DedekindResult();
+        result.n = n;
+        result.estimate = mean;
+        // sqrt( sumOfSquares / ( replicates * ( replicates - 1 ) ) ) * sqrt( iterations )
+        result.standardDeviation = sumOfSquares.signum() == 0
+            ? new Apfloat( 0.0 )
+            : ApfloatMath.sqrt( sumOfSquares.multiply( new Apfloat( iterations, 20 ) )
+                .divide( new Apfloat( (long) replicates * ( replicates - 1 ), 20 ) ) );
+        result.relativeStandardError = relativeStandardError( result.estimate, result.standardDeviation, iterations );
+        result.nIterations = iterations;
+        result.elapsedMillis = System.currentTimeMillis() - startMillis;
+        result.samplesPerSecond = iterations * 1000.0 / Math.max( 1, result.elapsedMillis );
+        result.korshunov = options.korshunov != null ? options.korshunov : korshunov( n );
+        result.seed = options.seed;
+        result.inclusionProbability = 0.5;
+        result.stopReason = StopReason.ITERATIONS;
+        if( options.console ) {
+            Trace.info( () -> columnHeaders() );
+            System.out.println( result );
+        }
+        if( options.resultSink != null ) {
+            options.resultSink.accept( ResultSink.RESULT, result );
+        }
+        return result;
+    }
+
+    /**
+     * Estimates with samples stratified by their size, see StratifiedSampling,
+     * on options.nWorkers threads. The first options.pilotIterations samples, by
+     * default a tenth of options.nIterations, are spread evenly over the strata,
+     * and only give the standard deviations of the strata, from which the other
+     * samples are allocated by Neyman allocation. The estimate is computed from
+     * these other samples only, so the allocation does not bias it, and the
+     * iterations of the result are their number.
+     *
+     * The standardDeviation of the result is the standard error * sqrt( iterations ),
+     * so that relativeStandardError has its usual meaning, and its variance reduction
+     * compares the variance of the estimate with that of as many uniform samples.
+     *
+     * There are no progress lines, checkpoints, shards, live metrics or stopping
+     * rules other than the number of iterations.
+     *
+     * @throws IllegalArgumentException if a checkpoint file, a shard, control variates
+     * or a stopping rule other than the number of iterations is set
+     */
+    private static DedekindResult stratifiedEstimation( EstimationOptions options ) {
+        if( options.checkpointFile != null || options.shard != RandomStreams.NO_SHARD || options.controlVariates
+            || options.targetRelativeStandardError > 0 || options.timeBudgetMillis > 0 ) {
+            throw new IllegalArgumentException( "Stratified sampling only supports a fixed number of iterations" );
+        }
+        final int n = options.n;
+        final long startMillis = System.currentTimeMillis();
+        final int k = isOdd( n ) ? ( n - 1 ) / 2 : n / 2;
+        final RankAdjacency adjacency = RankAdjacency.of( n, k );
+        final int rankSize = adjacency.middleRank.length;
+        final long pilotIterations = options.pilotIterations > 0 ? options.pilotIterations : options.nIterations / PROGRESS_REPORTS;
+        final long[] pilotCounts = new long[ rankSize + 1 ];
+        Arrays.fill( pilotCounts, Math.max( StratifiedSampling.MIN_STRATUM_COUNT, pilotIterations / ( rankSize + 1 ) ) );
+
+        final RandomStreams randomStreams = new RandomStreams( options.randomAlgorithm, options.seed );
+        final Apfloat multiplier = powerOfTwo( binomial( n, k ) );
+        final ExecutorService executor = options.executor != null ? options.executor : Executors.newFixedThreadPool( options.nWorkers );
+        final SampleHistogram histogram;
+        try {
+            final SampleHistogram pilot = runStrata( executor, adjacency, randomStreams, options.nWorkers, pilotCounts );
+            final long[] counts = StratifiedSampling.neymanAllocation( n, pilot, options.nIterations - pilot.count() );
+            Trace.debug( () -> "pilot: " + pilot.count() + " samples, allocation: " + Arrays.toString( counts ) );
+            DedekindEvents.SamplingBatch batchEvent = new DedekindEvents.SamplingBatch();
+            batchEvent.begin();
+            histogram = runStrata( executor, adjacency, randomStreams, options.nWorkers, counts );
+            batchEvent.n = n;
+            batchEvent.iterations = histogram.count();
+            batchEvent.commit();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while sampling", e );
+        } catch( ExecutionException e ) {
+            throw new IllegalStateException( "Sampling failed", e.getCause() );
+        } finally {
+            if( options.executor == null ) {
+                executor.shutdownNow();
+            }
+        }
+
+        final StratifiedSampling.Estimate estimate = StratifiedSampling.estimate( n, multiplier, histogram );
+        final DedekindResult result = new DedekindResult();
+        result.n = n;
+        result.estimate = estimate.estimate;
+        result.standardDeviation = estimate.standardDeviation;
+        result.varianceReduction = estimate.varianceReduction;
+        result.relativeStandardError = relativeStandardError( result.estimate, result.standardDeviation, histogram.count() );
+        result.nIterations = histogram.count();
+        result.elapsedMillis = System.currentTimeMillis() - startMillis;
+        result.samplesPerSecond = histogram.count() * 1000.0 / Math.max( 1, result.elapsedMillis );
+        result.korshunov = options.korshunov != null ? options.korshunov : korshunov( n );
+        result.seed = options.seed;
+        result.inclusionProbability = 0.5;
+        result.stopReason = StopReason.ITERATIONS;
+        if( options.console ) {
+            Trace.info( () -> columnHeaders() );
+            System.out.println( result );
+        }
+        if( options.resultSink != null ) {
+            options.resultSink.accept( ResultSink.RESULT, result );
+        }
+        return result;
+    }
+
+    /**
+     * Draws counts[ s ] samples of each stratum s, split among nWorkers tasks, each with the next stream of randomStreams.
+     */
+    private static SampleHistogram runStrata( ExecutorService executor, RankAdjacency adjacency, RandomStreams randomStreams,
+        int nWorkers, long[] counts ) throws InterruptedException, ExecutionException {
+        final List< Callable< SampleHistogram > > tasks = new ArrayList< Callable< SampleHistogram > >( nWorkers );
+        for( int w = 0; w < nWorkers; w++ ) {
+            final long[] workerCounts = new long[ counts.length ];
+            for( int s = 0; s < counts.length; s++ ) {
+                workerCounts[ s ] = counts[ s ] * ( w + 1 ) / nWorkers - counts[ s ] * w / nWorkers;
+            }
+            final RandomGenerator random = randomStreams.next();
+            tasks.add( () -> {
+                SampleHistogram histogram = new SampleHistogram( adjacency.middleRank.length );
+                StratifiedSampling.sample( adjacency, random, workerCounts, histogram );
+                return histogram;
+            } );
+        }
+        final SampleHistogram histogram = new SampleHistogram( adjacency.middleRank.length );
+        for( Future< SampleHistogram > workerHistogram : executor.invokeAll( tasks ) ) {
+            histogram.merge( workerHistogram.get() );
+        }
+        return histogram;
+    }
+
+    /**
+     * Estimates with uniform samples which are kept off the heap, one at a time,
+     * for the n whose middle rank is too large for RankAdjacency, n <= 63. The
+     * sample is a bitset in direct buffers, or mapped to options.sampleFile,
+     * see OffHeapBitset, and X and Y are counted by enumerating the ranks k + 1
+     * and k - 1, see StreamingAdjacency, each split into options.nWorkers ranges
+     * which are counted concurrently.
+     *
+     * The values of the samples are summed as floating point powers of 2, as
+     * there are few samples and no histogram. A progress line is printed every
+     * options.batchIterations samples, by default a tenth of options.nIterations,
+     * and the stopping rules are evaluated after each sample.
+     *
+     * There are no checkpoints, shards, live metrics or control variates.
+     *
+     * @throws IllegalArgumentException if a checkpoint file, a shard or control variates are set
+     */
+    private static DedekindResult streamingEstimation( EstimationOptions options ) {
+        if( options.checkpointFile != null || options.shard != RandomStreams.NO_SHARD || options.controlVariates ) {
+            throw new IllegalArgumentException( "Streaming sampling does not support checkpoints, shards or control variates" );
+        }
+        final int n = options.n;
+        final long nIterations = options.nIterations;
+        final long startMillis = System.currentTimeMillis();
+        final String columnHeaders = columnHeaders();
+        if( options.console ) {
+            Trace.info( () -> columnHeaders );
+        }
+        final int k = isOdd( n ) ? ( n - 1 ) / 2 : n / 2;
+        final StreamingAdjacency adjacency = new StreamingAdjacency( n, k );
+        final OffHeapBitset sample = options.sampleFile != null
+            ? OffHeapBitset.map( options.sampleFile, adjacency.middleRankSize )
+            : OffHeapBitset.allocate( adjacency.middleRankSize );
+        final Apfloat multiplier = powerOfTwo( adjacency.middleRankSize );
+        Trace.debug( () -> "n: " + n );
+        Trace.debug( () -> "k: " + k );
+        Trace.debug( () -> "middle rank: " + adjacency.middleRankSize + " n-tuples" );
+        Trace.debug( () -> "workers: " + options.nWorkers );
+        Trace.debug( () -> "seed: " + options.seed );
+        Trace.debug( () -> "sample file: " + options.sampleFile );
+
+        final RandomGenerator random = new RandomStreams( options.randomAlgorithm, options.seed ).next();
+        final List< Callable< Long > > xTasks = rangeTasks( adjacency.aboveMiddleSize, options.nWorkers,
+            ( from, to ) -> adjacency.calculateX( sample, from, to ) );
+        final List< Callable< Long > > yTasks = rangeTasks( adjacency.belowMiddleSize, options.nWorkers,
+            ( from, to ) -> adjacency.calculateY( sample, from, to ) );
+        final long batchIterations = options.batchIterations > 0
+            ? options.batchIterations
+            : Math.max( 1, nIterations / PROGRESS_REPORTS );
         final DedekindResult result = new DedekindResult();
-        final Apfloat korshunov = korshunov( n );
-
-        long[] sampleValues = new long[ nIterations ];
-        for( int i = 0; i < nIterations; i++ ) {
-            Set<Integer> sampleSet = randomSample( random, middleRank );
-            debug( "sample " + sampleSet );
-            int X = calculateX( n, aboveMiddle, sampleSet );
-            debug( "X: " + X );
-            int Y = calculateY( n, belowMiddle, sampleSet );
-            debug( "Y: " + Y );
-            long sample = pow2( X + Y );
-            if( isOdd( n ) ) {
-                // When n is odd multiply by 2 to account for the 2 rows which are
-                // which are just above and below the "middle" and then subtract
-                // the intersection of the two sets, so that it will not be counted twice.
-                sample = sample * 2 - pow2( X );
-            }
-            sampleValues[ i ] = sample;
-            debug( "sampleValue " + i + ": " + sampleValues[ i ] );
-            if( i > 0 && i % showInfo == 0 ) {
-                Apint sumSampleValues = sumSampleValues( sampleValues );
-                Apfloat estimate = estimate( multiplier, sumSampleValues, i + 1 );
-                Apfloat standardDeviation = standardDeviation( sampleValues, multiplier, estimate, i + 1 );
-                result.n = n;
-                result.estimate = estimate;
-                result.standardDeviation = standardDeviation;
-                result.nIterations = i;
+        result.n = n;
+        result.korshunov = options.korshunov != null ? options.korshunov : korshunov( n );
+        result.seed = options.seed;
+        result.inclusionProbability = 0.5;
+        final boolean trace = Trace.isEnabled( Trace.Level.TRACE );
+        Apfloat sum = Apfloat.ZERO;
+        Apfloat sumOfSquares = Apfloat.ZERO;
+        final ExecutorService executor = options.executor != null ? options.executor : Executors.newFixedThreadPool( options.nWorkers );
+        try {
+            for( long done = 1; result.stopReason == null; done++ ) {
+                DedekindEvents.SamplingBatch batchEvent = new DedekindEvents.SamplingBatch();
+                batchEvent.begin();
+                sample.randomize( random );
+                final long X = sumAll( executor.invokeAll( xTasks ) );
+                final long Y = sumAll( executor.invokeAll( yTasks ) );
+                batchEvent.n = n;
+                batchEvent.iterations = 1;
+                batchEvent.commit();
+                if( trace && Trace.sampled( done - 1 ) ) {
+                    Trace.trace( () -> "sample size: " + sample.cardinality() + " X: " + X + " Y: " + Y );
+                }
+                Apfloat value = powerOfTwo( X + Y );
+                if( isOdd( n ) ) {
+                    // As sampleValue.
+                    value = value.multiply( TWO ).subtract( powerOfTwo( X ) );
+                }
+                sum = sum.add( value );
+                sumOfSquares = sumOfSquares.add( value.multiply( value ) );
+                result.nIterations = done;
                 result.elapsedMillis = System.currentTimeMillis() - startMillis;
-                result.korshunov = korshunov;
-                System.out.println( result );
+                result.samplesPerSecond = done * 1000.0 / Math.max( 1, result.elapsedMillis );
+                result.estimate = sum.multiply( multiplier ).divide( new Apfloat( done, POWER_OF_TWO_PRECISION ) );
+                if( done > 1 ) {
+                    result.standardDeviation = standardDeviation( multiplier, done, sum, sumOfSquares );
+                    result.relativeStandardError = relativeStandardError( result.estimate, result.standardDeviation, done );
+                }
+                if( done >= nIterations ) {
+                    result.stopReason = StopReason.ITERATIONS;
+                } else if( options.targetRelativeStandardError > 0 && result.relativeStandardError <= options.targetRelativeStandardError ) {
+                    result.stopReason = StopReason.PRECISION;
+                } else if( options.timeBudgetMillis > 0 && result.elapsedMillis >= options.timeBudgetMillis ) {
+                    result.stopReason = StopReason.TIME_BUDGET;
+                } else if( done > 1 && done % batchIterations == 0 ) {
+                    if( options.console ) {
+                        System.out.println( result );
+                    }
+                    if( options.resultSink != null ) {
+                        options.resultSink.accept( ResultSink.PROGRESS, result );
+                    }
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while sampling", e );
+        } catch( ExecutionException e ) {
+            throw new IllegalStateException( "Sampling failed", e.getCause() );
+        } finally {
+            if( options.executor == null ) {
+                executor.shutdownNow();
             }
         }
-        debug( "time to calculate sampleValues: " + formatElapsedTime( System.currentTimeMillis() - startMillis ) );
+        Trace.debug( () -> "stop reason: " + result.stopReason );
+        if( options.console ) {
+            Trace.debug( () -> columnHeaders );
+            System.out.println( result );
+        }
+        if( options.resultSink != null ) {
+            options.resultSink.accept( ResultSink.RESULT, result );
+        }
+        return result;
+    }
 
-        Apint sumSampleValues = sumSampleValues( sampleValues );
-        Apfloat estimate = estimate( multiplier, sumSampleValues, sampleValues.length );
+    interface RangeCounter {
+        long count( long from, long to );
+    }
 
-        final long startStandardDeviation = System.currentTimeMillis();
-        Apfloat standardDeviation = standardDeviation( sampleValues, multiplier, estimate, sampleValues.length );
-        debug( "time to calculate standardDeviation: " + formatElapsedTime( System.currentTimeMillis() - startStandardDeviation ) );
+    /**
+     * @return parts tasks which count the indexes 0 ... size - 1 in ranges of about the same size
+     */
+    private static List< Callable< Long > > rangeTasks( long size, int parts, RangeCounter counter ) {
+        final List< Callable< Long > > tasks = new ArrayList< Callable< Long > >( parts );
+        for( int p = 0; p < parts; p++ ) {
+            final long from = size / parts * p + Math.min( p, size % parts );
+            final long to = size / parts * ( p + 1 ) + Math.min( p + 1, size % parts );
+            tasks.add( () -> counter.count( from, to ) );
+        }
+        return tasks;
+    }
+
+    private static long sumAll( List< Future< Long > > counts ) throws InterruptedException, ExecutionException {
+        long sum = 0;
+        for( Future< Long > count : counts ) {
+            sum += count.get();
+        }
+        return sum;
+    }
 
+    /**
+     * Computes the exact expectation of the estimator by enumerating all the
+     * subsets of the middle rank, see ExactEnumeration, which is feasible for
+     * n <= 6. It is D(n) for n <= 3, and slightly less beyond, e.g. 166 instead
+     * of 168 for n = 4 and 7741776 instead of 7828354 for n = 6: the estimator
+     * has a small negative bias, and this is the value the Monte Carlo
+     * estimates converge to.
+     * The standard deviation is that of
+     * the estimator for one sample: multiplier^2 * variance = 2^m * sum( v^2 ) - sum( v )^2
+     * over the 2^m subsets, where m = n choose k and multiplier = 2^m.
+     *
+     * @throws IllegalArgumentException if n is too large to enumerate
+     */
+    public static DedekindResult dedekindExact( int n ) {
+        final long startMillis = System.currentTimeMillis();
+        final int k = isOdd( n ) ? ( n - 1 ) / 2 : n / 2;
+        final RankAdjacency adjacency = RankAdjacency.of( n, k );
+        final SampleHistogram histogram = new ExactEnumeration( adjacency ).enumerate( Runtime.getRuntime().availableProcessors() );
+        final Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( adjacency.middleRank.length, ImportanceSampling.ONE_HALF );
+        // Exact, for the difference of the sums below, which is fine for the n which can be enumerated.
+        final Apint multiplier = ApintMath.pow( TWO, binomial( n, k ) );
+        // The likelihood ratios are all exactly 1, so the sums are exact.
+        final Apfloat sum = sumSampleValues( n, histogram, likelihoodRatios );
+        final Apfloat sumOfSquares = sumSquaredSampleValues( n, histogram, likelihoodRatios );
+        final Apfloat variance = multiplier.multiply( sumOfSquares ).subtract( sum.multiply( sum ) );
+
+        DedekindResult result = new DedekindResult();
         result.n = n;
-        result.estimate = estimate;
-        result.standardDeviation = standardDeviation;
-        result.nIterations = nIterations;
+        // An Apfloat rather than the Apint sum, which cannot be formatted with a precision, see DedekindResult.toString.
+        result.estimate = new Apfloat( sum.toString(), 100 );
+        // For n <= 1 every subset has the same value, and the square root of 0 is an Apint.
+        result.standardDeviation = variance.signum() == 0
+            ? new Apfloat( 0.0 )
+            : ApfloatMath.sqrt( new Apfloat( variance.toString(), 100 ) );
+        result.nIterations = histogram.count();
         result.elapsedMillis = System.currentTimeMillis() - startMillis;
-        result.korshunov = korshunov;
-        debug( columnHeaders );
+        result.korshunov = korshunov( n );
+        result.inclusionProbability = 0.5;
+        Trace.info( () -> columnHeaders() );
         System.out.println( result );
         return result;
     }
 
-    private static Apfloat estimate( Apint multiplier, Apint sumSampleValues, int sampleCount ) {
-        Apfloat estimate = sumSampleValues.multiply( multiplier ).divide( new Apfloat( sampleCount, 20 ) );
-        return estimate;
+    /**
+     * Combines the checkpoints of the shards of a run into one result, as if
+     * all their samples had been drawn by a single run. Its elapsedMillis is
+     * the total time spent by the shards.
+     *
+     * @throws IllegalArgumentException if the files are not distinct shards of runs with the same n and
+     * inclusion probability, or if one of several files is not that of a shard
+     */
+    public static DedekindResult merge( Path... shardFiles ) {
+        Checkpoint[] shards = new Checkpoint[ shardFiles.length ];
+        for( int i = 0; i < shardFiles.length; i++ ) {
+            shards[ i ] = Checkpoint.read( shardFiles[ i ] );
+        }
+        Checkpoint merged = Checkpoint.merge( shards );
+        final Apfloat multiplier = powerOfTwo( binomial( merged.n, merged.k ) );
+        final Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( merged.histogram.maxSize(), merged.inclusionNumerator );
+        DedekindResult result = new DedekindResult();
+        result.n = merged.n;
+        result.estimate = estimate( merged.n, multiplier, merged.histogram, likelihoodRatios );
+        result.standardDeviation = standardDeviation( merged.n, multiplier, merged.histogram, likelihoodRatios );
+        result.relativeStandardError = relativeStandardError( result.estimate, result.standardDeviation, merged.histogram.count() );
+        result.nIterations = merged.histogram.count();
+        result.elapsedMillis = merged.elapsedMillis;
+        result.korshunov = korshunov( merged.n );
+        result.seed = merged.seed;
+        result.inclusionProbability = ImportanceSampling.toProbability( merged.inclusionNumerator );
+        Trace.info( () -> columnHeaders() );
+        System.out.println( result );
+        return result;
+    }
+
+    private static void writeCheckpoint( Path file, int n, int k, RandomStreams randomStreams, int inclusionNumerator,
+        long elapsedMillis, SampleHistogram histogram ) {
+        DedekindEvents.Checkpoint event = new DedekindEvents.Checkpoint();
+        event.begin();
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.n = n;
+        checkpoint.k = k;
+        checkpoint.algorithm = randomStreams.algorithm;
+        checkpoint.seed = randomStreams.seed;
+        checkpoint.shard = randomStreams.shard;
+        checkpoint.streamsUsed = randomStreams.derived();
+        checkpoint.inclusionNumerator = inclusionNumerator;
+        checkpoint.elapsedMillis = elapsedMillis;
+        checkpoint.histogram = histogram;
+        checkpoint.write( file );
+        event.iterations = histogram.count();
+        event.commit();
+    }
+
+    /**
+     * Times CALIBRATION_ITERATIONS independent samples with kernel and as many
+     * antithetic samples, on the calling thread, twice, the first time to warm up.
+     * The random generator is not that of the run, whose samples are unchanged.
+     *
+     * @return the time of an antithetic sample / the time of an independent sample
+     */
+    static double antitheticCostRatio( RankAdjacency adjacency, SamplingKernel kernel, long seed ) {
+        final SamplingWorker worker = new SamplingWorker( adjacency, new SplittableRandom( seed ) );
+        worker.kernel = kernel;
+        worker.nIterations = CALIBRATION_ITERATIONS;
+        long independentNanos = 0;
+        long antitheticNanos = 0;
+        for( int round = 0; round < 2; round++ ) {
+            worker.antithetic = false;
+            long startNanos = System.nanoTime();
+            worker.call();
+            independentNanos = System.nanoTime() - startNanos;
+            worker.antithetic = true;
+            startNanos = System.nanoTime();
+            worker.call();
+            antitheticNanos = System.nanoTime() - startNanos;
+        }
+        return (double) Math.max( 1, antitheticNanos ) / Math.max( 1, independentNanos );
     }
 
-    private static Apint sumSampleValues( long[] sampleValues ) {
-        final long startSumSampleValues = System.currentTimeMillis();
-        // The estimated D(n) is ( sumSamples * nChooseK ) / numberOfSamples
-        Apint sumSampleValues = Apint.ZERO;
-        for( int i = 0; i < sampleValues.length; i++ ) {
-            sumSampleValues = sumSampleValues.add( new Apint( sampleValues[ i ] ) );
+    /**
+     * Runs nIterations iterations, split between the workers, and merges the
+     * workers' histograms. The workers keep counting across rounds, so the
+     * merged histogram covers all the rounds so far, and merging it only costs
+     * one histogram per worker, whatever the number of iterations done.
+     */
+    private static SampleHistogram runRound( ExecutorService executor, SamplingWorker[] workers, long nIterations )
+        throws InterruptedException, ExecutionException {
+        final int nWorkers = workers.length;
+        for( int w = 0; w < nWorkers; w++ ) {
+            workers[ w ].nIterations = nIterations * ( w + 1 ) / nWorkers - nIterations * w / nWorkers;
+        }
+        SampleHistogram histogram = new SampleHistogram( workers[ 0 ].adjacency.middleRank.length );
+        for( Future< SampleHistogram > workerHistogram : executor.invokeAll( Arrays.asList( workers ) ) ) {
+            histogram.merge( workerHistogram.get() );
         }
-        debug( "time to calculate sumSampleValues: " + formatElapsedTime( System.currentTimeMillis() - startSumSampleValues ) );
-        return sumSampleValues;
+        return histogram;
     }
 
-    static Apfloat standardDeviation( long[] sampleValues, Apint multiplier, Apfloat estimate, int sampleCount ) {
-        // In a previous version which used BigDecimal, the calculation of the
-        // square root would fail for n > 12, because The recursive sqrt
-        // function would cause a StackOverflowError.
-        Apfloat sumOfSquaresOfDifferences = Apfloat.ZERO;
-        Apfloat difference = Apfloat.ZERO;
-        try {
-            for( int i = 0; i < sampleCount; i++ ) {
-                difference = new Apfloat( sampleValues[ i ] ).multiply( multiplier ).subtract( estimate );
-                sumOfSquaresOfDifferences = sumOfSquaresOfDifferences.add( difference.multiply( difference ) );
-            }
-        } catch( ArrayIndexOutOfBoundsException e ) {
-            System.out.println( "Caught ArrayIndexOutOfBoundsException!" );
-            System.out.println( "difference: " + difference );
-            return new Apfloat( -1 );
-        }
-        Apfloat floatSumOfSquaresOfDifferences = new Apfloat( sumOfSquaresOfDifferences.toString(), 100 );
-        Apfloat variance = floatSumOfSquaresOfDifferences.divide( new Apint( sampleCount - 1 ) );
-        debug( String.format( "variance: " + variance ) );
-        Apfloat sqrt = ApfloatMath.sqrt( variance );
-        debug( String.format( "standardDeviation: " + sqrt ) );
+    /**
+     * Adds nIterations samples to the worker's histogram and returns it.
+     * A worker is only ever run by one thread at a time.
+     */
+    static class SamplingWorker implements Callable< SampleHistogram > {
+        private final RankAdjacency adjacency;
+        RandomGenerator random;
+        // The sample is refilled in place on every iteration, so the loop does not allocate.
+        private final long[] sample;
+        SampleHistogram histogram;
+        // The probability that an n-tuple is included in the sample, in multiples of 2^-16.
+        int inclusionNumerator = ImportanceSampling.ONE_HALF;
+        SamplingKernel kernel = SamplingKernel.SCALAR;
+        private BitSlicedKernel bitSlicedKernel;
+        private PushKernel pushKernel;
+        // Draw the samples in antithetic pairs, whatever the kernel, see sampleAntithetic.
+        boolean antithetic;
+        // Sums the new samples and publishes them to the live metrics every METRICS_INTERVAL iterations, if not null.
+        RunMetrics.Publisher metrics;
+        long nIterations;
+
+        SamplingWorker( RankAdjacency adjacency, RandomGenerator random ) {
+            this.adjacency = adjacency;
+            this.random = random;
+            this.sample = new long[ adjacency.sampleWords() ];
+            this.histogram = new SampleHistogram( adjacency.middleRank.length );
+        }
+
+        @Override
+        public SampleHistogram call() {
+            for( long done = 0; done < nIterations; done += RunMetrics.METRICS_INTERVAL ) {
+                final long chunk = Math.min( RunMetrics.METRICS_INTERVAL, nIterations - done );
+                if( antithetic ) {
+                    sampleAntithetic( chunk );
+                } else if( kernel == SamplingKernel.BIT_SLICED ) {
+                    sampleBitSliced( chunk );
+                } else {
+                    sample( chunk );
+                }
+                if( metrics != null ) {
+                    metrics.publish();
+                }
+            }
+            return histogram;
+        }
+
+        private void sample( long nIterations ) {
+            final int rankSize = adjacency.middleRank.length;
+            // Read once, so that the loop does not even test the level when tracing is off.
+            final boolean trace = Trace.isEnabled( Trace.Level.TRACE );
+            if( kernel == SamplingKernel.PUSH && pushKernel == null ) {
+                pushKernel = new PushKernel( adjacency );
+            }
+            final PushKernel push = kernel == SamplingKernel.PUSH ? pushKernel : null;
+            for( long i = 0; i < nIterations; i++ ) {
+                if( inclusionNumerator == ImportanceSampling.ONE_HALF ) {
+                    randomSample( random, rankSize, sample );
+                } else {
+                    ImportanceSampling.randomSample( random, rankSize, inclusionNumerator, sample );
+                }
+                if( push != null ) {
+                    push.count( sample );
+                }
+                final int X = push != null ? push.X() : calculateX( adjacency, sample );
+                final int Y = push != null ? push.Y() : calculateY( adjacency, sample );
+                if( trace && Trace.sampled( i ) ) {
+                    Trace.trace( () -> "sample " + Arrays.toString( sample ) + " X: " + X + " Y: " + Y );
+                }
+                final int size = sampleSize( sample );
+                histogram.add( size, X, Y );
+                if( metrics != null ) {
+                    metrics.add( size, X, Y );
+                }
+            }
+        }
+
+        /**
+         * Draws the samples in pairs, a uniform sample S and its complement in
+         * the middle rank, which has the same distribution, so the mean of the
+         * pairs is unbiased. The complement is evaluated in the same passes
+         * as S, see calculateXPair and calculateYPair. The samples of a pair
+         * are added to the histogram, and the product of their values to its
+         * pair products. nIterations is rounded up to an even number.
+         */
+        private void sampleAntithetic( long nIterations ) {
+            final int rankSize = adjacency.middleRank.length;
+            final boolean trace = Trace.isEnabled( Trace.Level.TRACE );
+            for( long i = 0; i < nIterations; i += 2 ) {
+                randomSample( random, rankSize, sample );
+                final long xPair = calculateXPair( adjacency, sample );
+                final long yPair = calculateYPair( adjacency, sample );
+                final int X = (int) xPair;
+                final int Y = (int) yPair;
+                final int complementX = (int) ( xPair >>> 32 );
+                final int complementY = (int) ( yPair >>> 32 );
+                if( trace && Trace.sampled( i / 2 ) ) {
+                    Trace.trace( () -> "sample " + Arrays.toString( sample ) + " X: " + X + " Y: " + Y
+                        + " complement X: " + complementX + " Y: " + complementY );
+                }
+                final int size = sampleSize( sample );
+                histogram.add( size, X, Y );
+                histogram.add( rankSize - size, complementX, complementY );
+                if( metrics != null ) {
+                    metrics.add( size, X, Y );
+                    metrics.add( rankSize - size, complementX, complementY );
+                }
+                addPairProduct( adjacency.n, X, Y, complementX, complementY, histogram );
+            }
+        }
+
+        /**
+         * Draws the samples 64 at a time. The samples of the last pass which are
+         * beyond nIterations are discarded.
+         */
+        private void sampleBitSliced( long nIterations ) {
+            if( bitSlicedKernel == null ) {
+                bitSlicedKernel = new BitSlicedKernel( adjacency );
+            }
+            final boolean trace = Trace.isEnabled( Trace.Level.TRACE );
+            for( long i = 0; i < nIterations; i += BitSlicedKernel.LANES ) {
+                bitSlicedKernel.randomSamples( random, inclusionNumerator );
+                bitSlicedKernel.count();
+                if( trace && Trace.sampled( i / BitSlicedKernel.LANES ) ) {
+                    // Only the first of the 64 samples.
+                    Trace.trace( () -> "sample size: " + bitSlicedKernel.size( 0 ) + " X: " + bitSlicedKernel.X( 0 ) + " Y: " + bitSlicedKernel.Y( 0 ) );
+                }
+                bitSlicedKernel.addTo( histogram, (int) Math.min( BitSlicedKernel.LANES, nIterations - i ), metrics );
+            }
+        }
+    }
+
+    /**
+     * @return the number of n-tuples in the sample
+     */
+    static int sampleSize( long[] sample ) {
+        int size = 0;
+        for( long word : sample ) {
+            size += Long.bitCount( word );
+        }
+        return size;
+    }
+
+    /**
+     * @return 2^exponent as a floating point number of POWER_OF_TWO_PRECISION digits. As an Apint it
+     * would have exponent bits, i.e. millions for the multiplier 2^(n choose k) of n in the 20s, and
+     * every product with it would be as long. Its decimal expansion is only written out by toString( true ).
+     */
+    static Apfloat powerOfTwo( long exponent ) {
+        return ApfloatMath.pow( new Apfloat( 2, POWER_OF_TWO_PRECISION ), exponent );
+    }
+
+    /**
+     * @return the value of a sample: 2^(X+Y), or 2 * 2^(X+Y) - 2^X when n is odd.
+     */
+    static Apint sampleValue( int n, int X, int Y ) {
+        Apint sampleValue = ApintMath.pow( TWO, X + Y );
+        if( isOdd( n ) ) {
+            // When n is odd multiply by 2 to account for the 2 rows which are
+            // which are just above and below the "middle" and then subtract
+            // the intersection of the two sets, so that it will not be counted twice.
+            sampleValue = sampleValue.multiply( TWO ).subtract( ApintMath.pow( TWO, X ) );
+        }
+        return sampleValue;
+    }
+
+    /**
+     * Adds the product of the values of the samples ( X1, Y1 ) and ( X2, Y2 ), see sampleValue,
+     * to the pair products of histogram, as powers of 2: 2^(X1+Y1+X2+Y2) when n is even, and when n is odd
+     * ( 2^(X1+Y1+1) - 2^X1 ) ( 2^(X2+Y2+1) - 2^X2 ) = 2^(X1+Y1+X2+Y2+2) - 2^(X1+Y1+X2+1) - 2^(X1+X2+Y2+1) + 2^(X1+X2)
+     */
+    static void addPairProduct( int n, int X1, int Y1, int X2, int Y2, SampleHistogram histogram ) {
+        if( isOdd( n ) ) {
+            histogram.addPairProduct( X1 + Y1 + X2 + Y2 + 2, 1 );
+            histogram.addPairProduct( X1 + Y1 + X2 + 1, -1 );
+            histogram.addPairProduct( X1 + X2 + Y2 + 1, -1 );
+            histogram.addPairProduct( X1 + X2, 1 );
+        } else {
+            histogram.addPairProduct( X1 + Y1 + X2 + Y2, 1 );
+        }
+    }
+
+    /**
+     * @return the exact sum of the products of the values of the pairs of the histogram
+     */
+    static Apint sumPairProducts( SampleHistogram histogram ) {
+        Apint sum = Apint.ZERO;
+        for( int e = 0; e < histogram.pairProductExponents(); e++ ) {
+            if( histogram.pairProducts( e ) != 0 ) {
+                sum = sum.add( ApintMath.pow( TWO, e ).multiply( new Apint( histogram.pairProducts( e ) ) ) );
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The standard deviation of the samples of an antithetic run, see SamplingWorker.sampleAntithetic,
+     * as the standard deviation of the sums of the pairs / sqrt( 2 ), so that standardDeviation / sqrt( samples )
+     * is the standard error of the mean of the pairs:
+     * sum over the pairs of ( v1 + v2 )^2 = sum of the v^2 + 2 * sum of the v1 v2.
+     */
+    static Apfloat antitheticStandardDeviation( int n, Apfloat multiplier, SampleHistogram histogram, Apfloat[] likelihoodRatios ) {
+        final Apfloat sumOfSquares = sumSquaredSampleValues( n, histogram, likelihoodRatios ).add( TWO.multiply( sumPairProducts( histogram ) ) );
+        final Apfloat pairStandardDeviation = standardDeviation( multiplier, histogram.count() / 2,
+            sumSampleValues( n, histogram, likelihoodRatios ), sumOfSquares );
+        return pairStandardDeviation.divide( ApfloatMath.sqrt( new Apfloat( 2, POWER_OF_TWO_PRECISION ) ) );
+    }
+
+    /**
+     * @return the sum of the sample values, each one multiplied by the likelihood ratio of its size.
+     */
+    static Apfloat sumSampleValues( int n, SampleHistogram histogram, Apfloat[] likelihoodRatios ) {
+        final Apfloat[] sum = { Apint.ZERO };
+        histogram.forEach( ( size, X, Y, count ) -> {
+            Apfloat weightedValue = sampleValue( n, X, Y ).multiply( likelihoodRatios[ size ] );
+            sum[ 0 ] = sum[ 0 ].add( weightedValue.multiply( new Apint( count ) ) );
+        } );
+        return sum[ 0 ];
+    }
+
+    /**
+     * @return the sum of the squares of the weighted sample values.
+     */
+    static Apfloat sumSquaredSampleValues( int n, SampleHistogram histogram, Apfloat[] likelihoodRatios ) {
+        final Apfloat[] sum = { Apint.ZERO };
+        histogram.forEach( ( size, X, Y, count ) -> {
+            Apfloat weightedValue = sampleValue( n, X, Y ).multiply( likelihoodRatios[ size ] );
+            sum[ 0 ] = sum[ 0 ].add( weightedValue.multiply( weightedValue ).multiply( new Apint( count ) ) );
+        } );
+        return sum[ 0 ];
+    }
+
+    static Apfloat estimate( int n, Apfloat multiplier, SampleHistogram histogram, Apfloat[] likelihoodRatios ) {
+        // The estimated D(n) is ( sumSamples * 2^(n choose k) ) / numberOfSamples
+        Apfloat sum = sumSampleValues( n, histogram, likelihoodRatios );
+        Apfloat estimate = sum.multiply( multiplier ).divide( new Apfloat( histogram.count(), 20 ) );
+        return estimate;
+    }
+
+    static Apfloat standardDeviation( int n, Apfloat multiplier, SampleHistogram histogram, Apfloat[] likelihoodRatios ) {
+        return standardDeviation( multiplier, histogram.count(), sumSampleValues( n, histogram, likelihoodRatios ),
+            sumSquaredSampleValues( n, histogram, likelihoodRatios ) );
+    }
+
+    /**
+     * Calculates the sample standard deviation from the exact sums of the samples and of their squares:
+     * variance = ( count * sumOfSquares - sum^2 ) / ( count * (count - 1) ).
+     * The multiplier is only applied to the final result.
+     */
+    static Apfloat standardDeviation( Apfloat multiplier, long sampleCount, Apfloat sum, Apfloat sumOfSquares ) {
+        Apint count = new Apint( sampleCount );
+        Apfloat numerator = count.multiply( sumOfSquares ).subtract( sum.multiply( sum ) );
+        Apfloat variance = new Apfloat( numerator.toString(), 100 ).divide( count.multiply( count.subtract( Apint.ONE ) ) );
+        Trace.debug( () -> String.format( "variance: " + variance ) );
+        Apfloat sqrt = ApfloatMath.sqrt( variance ).multiply( multiplier );
+        Trace.debug( () -> String.format( "standardDeviation: " + sqrt ) );
         return sqrt;
     }
 
-    private static final long[] POWERS_OF_2 = {
-        1,
-        2,
-        4,
-        8,
-        16,
-        32,
-        64,
-        128,
-        256,
-        512,
-        1024,
-        2048,
-        4096,
-        8192,
-        16384,
-        32768,
-        65536,
-        131072,
-        262144,
-        524288,
-        1048576,
-        2097152,
-        4194304,
-        8388608,
-        16777216,
-        33554432,
-        67108864,
-        134217728,
-        268435456,
-        536870912,
-        1073741824,
-        2147483648L,
-        4294967296L,
-    };
-
-    public static long pow2( int integer ) {
-        return POWERS_OF_2[ integer ];
+    /**
+     * @return standardDeviation / ( sqrt( sampleCount ) * estimate ), or infinity while the estimate is 0
+     */
+    static double relativeStandardError( Apfloat estimate, Apfloat standardDeviation, long sampleCount ) {
+        if( estimate.signum() == 0 ) {
+            return Double.POSITIVE_INFINITY;
+        }
+        Apfloat sqrtCount = ApfloatMath.sqrt( new Apfloat( sampleCount, 20 ) );
+        return standardDeviation.divide( estimate.multiply( sqrtCount ) ).doubleValue();
     }
 
     /**
@@ -210,7 +1230,7 @@ public class DedekindMonteCarlo {
     * @param sample an array of n-tuples of rank k
     * @return
     */
-   static int calculateY( int n, int[] belowSample, Set<Integer> sample ) {
+   static int calculateY( int n, int[] belowSample, long[] sample ) {
        int Y = 0;
        for( int i = 0; i < belowSample.length; i++ ) {
            if( noneOfSuccessorsAreInSample( belowSample[ i ], n, sample ) ) {
@@ -220,13 +1240,17 @@ public class DedekindMonteCarlo {
        return Y;
    }
 
+   static int calculateY( int n, int[] belowSample, Set<Integer> sample ) {
+       return calculateY( n, belowSample, toSample( n, sample ) );
+   }
+
    /**
     * @param predecessor an n-tuple of rank k - 1
     * @param n is the rank of the n-tuples contained in the sample
     * @param sample an array of n-tuples of rank k
     * @return true iff all successors of the predecessor are in the sample
     */
-    public static boolean noneOfSuccessorsAreInSample( int predecessor, int n, Set<Integer> sample ) {
+    public static boolean noneOfSuccessorsAreInSample( int predecessor, int n, long[] sample ) {
         int bitmask = 1;
         for( int i = 0; i < n; i++ ) {
             if( ( predecessor & bitmask ) == 0 ) {
@@ -240,6 +1264,10 @@ public class DedekindMonteCarlo {
         return true;
     }
 
+    public static boolean noneOfSuccessorsAreInSample( int predecessor, int n, Set<Integer> sample ) {
+        return noneOfSuccessorsAreInSample( predecessor, n, toSample( n, sample ) );
+    }
+
     /**
      *
      * @param k is the rank of the n-tuples contained in the sample
@@ -247,7 +1275,7 @@ public class DedekindMonteCarlo {
      * @param sample an array of n-tuples of rank k
      * @return
      */
-    static int calculateX( int n, int[] aboveSample, Set<Integer> sample ) {
+    static int calculateX( int n, int[] aboveSample, long[] sample ) {
         int X = 0;
         for( int i = 0; i < aboveSample.length; i++ ) {
             if( allPredecessorsAreInSample( aboveSample[ i ], n, sample ) ) {
@@ -257,13 +1285,17 @@ public class DedekindMonteCarlo {
         return X;
     }
 
+    static int calculateX( int n, int[] aboveSample, Set<Integer> sample ) {
+        return calculateX( n, aboveSample, toSample( n, sample ) );
+    }
+
     /**
      * @param successor an n-tuple of rank k + 1
      * @param n is the rank of the n-tuples contained in the sample
      * @param sample an array of n-tuples of rank k
      * @return true iff all predecessors of the successor are in the sample
      */
-    public static boolean allPredecessorsAreInSample( int successor, int n, Set<Integer> sample ) {
+    public static boolean allPredecessorsAreInSample( int successor, int n, long[] sample ) {
         int bitmask = 1;
         for( int i = 0; i < n ; i++ ) {
             if( ( successor & bitmask) != 0 ) {
@@ -277,26 +1309,157 @@ public class DedekindMonteCarlo {
         return true;
     }
 
-    private static boolean contains( int searchValue, Set<Integer> nTuples ) {
-        return nTuples.contains( searchValue );
+    public static boolean allPredecessorsAreInSample( int successor, int n, Set<Integer> sample ) {
+        return allPredecessorsAreInSample( successor, n, toSample( n, sample ) );
+    }
+
+    /**
+     * A sample is a bitset indexed by the value of the n-tuple: bit t is set iff
+     * the n-tuple t is in the sample.
+     *
+     * @param n the length of the n-tuples
+     * @return an empty sample large enough to hold any n-tuple
+     */
+    static long[] newSample( int n ) {
+        return new long[ ( ( 1 << n ) + 63 ) >>> 6 ];
+    }
+
+    /**
+     * Converts a set of n-tuples into a bitset indexed by the value of the n-tuple.
+     */
+    static long[] toSample( int n, Set<Integer> nTuples ) {
+        long[] sample = newSample( n );
+        for( int nTuple : nTuples ) {
+            sample[ nTuple >>> 6 ] |= 1L << nTuple;
+        }
+        return sample;
+    }
+
+    private static boolean contains( int searchValue, long[] sample ) {
+        return ( sample[ searchValue >>> 6 ] & ( 1L << searchValue ) ) != 0;
+    }
+
+    /**
+     * Refills sample in place with a random subset of the middle rank, each of
+     * its rankSize n-tuples being included with probability 1/2.
+     * Bit i of the sample stands for the n-tuple of index i in the middle rank,
+     * so each call to the generator decides 64 n-tuples at once.
+     */
+    static void randomSample( RandomGenerator random, int rankSize, long[] sample ) {
+        final int words = ( rankSize + 63 ) >>> 6;
+        for( int i = 0; i < words; i++ ) {
+            sample[ i ] = random.nextLong();
+        }
+        if( ( rankSize & 63 ) != 0 ) {
+            sample[ words - 1 ] &= ( 1L << rankSize ) - 1;
+        }
+    }
+
+    /**
+     * @return the first nStreams generators of new RandomStreams( algorithm, seed )
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    static RandomGenerator[] randomStreams( String algorithm, long seed, int nStreams ) {
+        RandomStreams randomStreams = new RandomStreams( algorithm, seed );
+        RandomGenerator[] streams = new RandomGenerator[ nStreams ];
+        for( int i = 0; i < nStreams; i++ ) {
+            streams[ i ] = randomStreams.next();
+        }
+        return streams;
+    }
+
+    /**
+     * @param adjacency the neighbours in the middle rank of the n-tuples of rank k + 1
+     * @param sample a bitset over the indexes of the middle rank
+     * @return the number of n-tuples of rank k + 1 all of whose predecessors are in the sample
+     */
+    static int calculateX( RankAdjacency adjacency, long[] sample ) {
+        final int[] offsets = adjacency.predecessorMaskOffsets;
+        final int[] words = adjacency.predecessorWords;
+        final long[] masks = adjacency.predecessorMasks;
+        int X = 0;
+        for( int i = 0; i + 1 < offsets.length; i++ ) {
+            int j = offsets[ i ];
+            while( j < offsets[ i + 1 ] && ( sample[ words[ j ] ] & masks[ j ] ) == masks[ j ] ) {
+                j++;
+            }
+            if( j == offsets[ i + 1 ] ) {
+                X = X + 1;
+            }
+        }
+        return X;
+    }
+
+    /**
+     * @param adjacency the neighbours in the middle rank of the n-tuples of rank k - 1
+     * @param sample a bitset over the indexes of the middle rank
+     * @return the number of n-tuples of rank k - 1 none of whose successors are in the sample
+     */
+    static int calculateY( RankAdjacency adjacency, long[] sample ) {
+        final int[] offsets = adjacency.successorMaskOffsets;
+        final int[] words = adjacency.successorWords;
+        final long[] masks = adjacency.successorMasks;
+        int Y = 0;
+        for( int i = 0; i + 1 < offsets.length; i++ ) {
+            int j = offsets[ i ];
+            while( j < offsets[ i + 1 ] && ( sample[ words[ j ] ] & masks[ j ] ) == 0 ) {
+                j++;
+            }
+            if( j == offsets[ i + 1 ] ) {
+                Y = Y + 1;
+            }
+        }
+        return Y;
     }
 
-    private static Set<Integer> randomSample( Random random, int[] rank_K ) {
-        boolean[] includeInSample = new boolean[ rank_K.length ];
-        int elementCount = 0;
-        for( int i = 0; i < includeInSample.length; i++ ) {
-            includeInSample[ i ] = random.nextBoolean();
-            if( includeInSample[ i ] ) {
-                elementCount = elementCount + 1;
+    /**
+     * @return X of the sample in the low 32 bits, and X of its complement in the middle rank,
+     * the number of n-tuples of rank k + 1 none of whose predecessors are in the sample, in the
+     * high 32 bits, in one pass which stops at the first n-tuple which is neither
+     */
+    static long calculateXPair( RankAdjacency adjacency, long[] sample ) {
+        final int[] offsets = adjacency.predecessorMaskOffsets;
+        final int[] words = adjacency.predecessorWords;
+        final long[] masks = adjacency.predecessorMasks;
+        long X = 0;
+        long complementX = 0;
+        for( int i = 0; i + 1 < offsets.length; i++ ) {
+            boolean all = true;
+            boolean none = true;
+            for( int j = offsets[ i ]; j < offsets[ i + 1 ] && ( all || none ); j++ ) {
+                final long inSample = sample[ words[ j ] ] & masks[ j ];
+                all &= inSample == masks[ j ];
+                none &= inSample == 0;
             }
+            X += all ? 1 : 0;
+            complementX += none ? 1 : 0;
         }
-        Set<Integer> randomSample = new HashSet<Integer>(elementCount);
-        for( int i = 0; i < includeInSample.length; i++ ) {
-            if( includeInSample[ i ] ) {
-                randomSample.add( rank_K[ i ] );
+        return X | ( complementX << 32 );
+    }
+
+    /**
+     * @return Y of the sample in the low 32 bits, and Y of its complement in the middle rank,
+     * the number of n-tuples of rank k - 1 all of whose successors are in the sample, in the
+     * high 32 bits, in one pass
+     */
+    static long calculateYPair( RankAdjacency adjacency, long[] sample ) {
+        final int[] offsets = adjacency.successorMaskOffsets;
+        final int[] words = adjacency.successorWords;
+        final long[] masks = adjacency.successorMasks;
+        long Y = 0;
+        long complementY = 0;
+        for( int i = 0; i + 1 < offsets.length; i++ ) {
+            boolean all = true;
+            boolean none = true;
+            for( int j = offsets[ i ]; j < offsets[ i + 1 ] && ( all || none ); j++ ) {
+                final long inSample = sample[ words[ j ] ] & masks[ j ];
+                all &= inSample == masks[ j ];
+                none &= inSample == 0;
             }
+            Y += none ? 1 : 0;
+            complementY += all ? 1 : 0;
         }
-        return randomSample;
+        return Y | ( complementY << 32 );
     }
 
     private static boolean isOdd( int integer ) {
@@ -308,49 +1471,39 @@ public class DedekindMonteCarlo {
     }
 
     public static int[] generateNTuplesOfRank_K( int n, int k ) {
-        ArrayList< Integer > nTuples = new ArrayList< Integer >();
-        int upperLimit = ( 1 << n ) - 1; // (2 ^ n) - 1
-        for( int i = 0; i <= upperLimit; i++ ) {
-            if( Integer.bitCount( i ) == k ) {
-                nTuples.add( i );
-            }
-        }
-
-        int[] result = new int[ nTuples.size() ];
-        for( int i = 0; i < result.length; i++ ) {
-            result[ i ] = nTuples.get( i );
-        }
-        return result;
+        return Combinatorics.nTuplesOfRankArray( n, k );
     }
 
     public static Apfloat korshunov( int n ) {
-        final long start = System.currentTimeMillis();
+        DedekindEvents.Korshunov event = new DedekindEvents.Korshunov();
+        event.begin();
         Apfloat kdn;
         if( isOdd( n ) ) {
             // korshunov(n) = 2^( (n choose ((n-1)/2)) + 1) * exp( b(n) + c(n) )
-            Apint f = ApintMath.pow( TWO, binomial( n, (n - 1)/2 ) + 1 );
-            debug( "f:" + f );
+            Apfloat f = powerOfTwo( binomial( n, (n - 1)/2 ) + 1 );
+            Trace.debug( () -> "f:" + f );
             Apfloat bn = b(n);
-            debug( "b(n): " + bn );
+            Trace.debug( () -> "b(n): " + bn );
             Apfloat cn = c(n);
-            debug( "c(n): " + cn );
+            Trace.debug( () -> "c(n): " + cn );
             Apfloat expbncn = ApfloatMath.exp( bn.add( cn ) );
             kdn = f.multiply( expbncn );
         } else {
-            Apint f = ApintMath.pow( TWO, binomial( n, n/2 ) );
-            debug( "f:" + f );
-            debug( "f.precision():" + f.precision() );
+            Apfloat f = powerOfTwo( binomial( n, n/2 ) );
+            Trace.debug( () -> "f:" + f );
+            Trace.debug( () -> "f.precision():" + f.precision() );
             Apfloat a = a( n );
-            debug( "a(n): " + a );
-            debug( "a(n).precision(): " + a.precision() );
+            Trace.debug( () -> "a(n): " + a );
+            Trace.debug( () -> "a(n).precision(): " + a.precision() );
             Apfloat expa = ApfloatMath.exp( a );
-            debug( "exp(a):" + expa );
-            debug( "exp(a).precision(): " + expa.precision() );
+            Trace.debug( () -> "exp(a):" + expa );
+            Trace.debug( () -> "exp(a).precision(): " + expa.precision() );
             kdn = f.multiply( expa );
         }
-        debug( String.format( "kd(%d): %s", n, kdn ) );
-        debug( String.format( "kd(%d).precision(): %s", n, kdn.precision() ) );
-        debug( String.format( "time to calculate kd(%d): %s", n, formatElapsedTime( System.currentTimeMillis() - start ) ) );
+        Trace.debug( () -> String.format( "kd(%d): %s", n, kdn ) );
+        Trace.debug( () -> String.format( "kd(%d).precision(): %s", n, kdn.precision() ) );
+        event.n = n;
+        event.commit();
         return kdn;
     }
 
@@ -386,15 +1539,11 @@ public class DedekindMonteCarlo {
         return result;
     }
 
-    public static int binomial( long total, long choose ) {
-        if( total < choose )
-            return 0;
-        if( choose == 0 || choose == total )
-            return 1;
-        return binomial( total - 1, choose - 1 ) + binomial( total - 1, choose );
+    public static long binomial( int total, int choose ) {
+        return Combinatorics.binomial( total, choose );
     }
 
-    private static String columnHeaders() {
+    static String columnHeaders() {
         StringBuilder sb = new StringBuilder( 132 );
         sb.append( "n" );
 
@@ -423,26 +1572,112 @@ public class DedekindMonteCarlo {
         return String.format("%dh:%dm:%ds:%dms", h, m, s, ms );
     }
 
-    @SuppressWarnings ( "unused")
-    private static void debug( String s ) {
-        if( ( TRACE_LEVEL & DEBUG ) != 0 ) {
-            System.out.println( s );
-        }
+    enum SamplingMode {
+        // Each n-tuple of the middle rank is in the sample with probability 1/2.
+        UNIFORM,
+        // Each n-tuple is in the sample with probability p, see ImportanceSampling.
+        IMPORTANCE,
+        // Randomized quasi-Monte Carlo, see quasiRandomEstimation.
+        QUASI_RANDOM,
+        // UNIFORM, one sample at a time, kept off the heap, for large n, see streamingEstimation.
+        STREAMING,
+        // Samples of each size, weighted by the probability of the size, see stratifiedEstimation.
+        STRATIFIED,
     }
 
-    private static void info( String s ) {
-        if( ( TRACE_LEVEL & INFO ) != 0 ) {
-            System.out.println( s );
-        }
+    enum SamplingKernel {
+        // One sample at a time, see calculateX and calculateY.
+        SCALAR,
+        // 64 samples at a time, see BitSlicedKernel.
+        BIT_SLICED,
+        // One sample at a time, in one pass over the n-tuples of the sample, see PushKernel.
+        PUSH,
+    }
+
+    enum StopReason {
+        // options.nIterations were done
+        ITERATIONS,
+        // options.targetRelativeStandardError was reached
+        PRECISION,
+        // options.timeBudgetMillis elapsed
+        TIME_BUDGET,
+    }
+
+    static class EstimationOptions {
+        int n;
+        long nIterations;
+        int nWorkers = Runtime.getRuntime().availableProcessors();
+        // Runs with the same algorithm, seed and number of workers produce identical results.
+        long seed = System.nanoTime();
+        // The name of a java.util.random algorithm, see randomStreams.
+        String randomAlgorithm = "SplittableRandom";
+        SamplingMode samplingMode = SamplingMode.UNIFORM;
+        SamplingKernel kernel = SamplingKernel.BIT_SLICED;
+        // IMPORTANCE sampling: the probability that an n-tuple is included in the sample,
+        // unless pilotIterations > 0, in which case a pilot run chooses it.
+        double inclusionProbability = 0.5;
+        // The samples of a pilot run, which are not part of the estimate.
+        // IMPORTANCE sampling: if > 0, a pilot of uniform samples chooses the inclusion probability
+        // instead of inclusionProbability. By default 0, there is no pilot.
+        // STRATIFIED sampling: a pilot spread evenly over the strata allocates the other samples.
+        // 0, the default, means nIterations / 10.
+        long pilotIterations;
+        // The number of iterations between two progress lines and evaluations of the stopping rule.
+        // 0 means nIterations / 10.
+        long batchIterations;
+        // Stop as soon as the relative standard error of the estimate is at most this, if > 0.
+        double targetRelativeStandardError;
+        // Stop after the first batch which ends after this many milliseconds, if > 0.
+        long timeBudgetMillis;
+        // The file where the state of the run is saved, see Checkpoint, null for none.
+        Path checkpointFile;
+        long checkpointIntervalMillis = 60000;
+        // Continue the run saved in checkpointFile, if it exists.
+        boolean resume;
+        // The shards of a run have the same seed and distinct shard numbers >= 0,
+        // their checkpoints can be merged, see merge.
+        int shard = RandomStreams.NO_SHARD;
+        // Receives the progress snapshots and the result as records, null for none.
+        ResultSink resultSink;
+        // Register the live metrics of the run as an MBean, see DedekindRunMXBean.
+        boolean metrics = true;
+        // Print the column headers, the progress lines and the result to System.out.
+        boolean console = true;
+        // The pool which runs the workers, which is left running. Null for a pool of nWorkers threads for this run only.
+        ExecutorService executor;
+        // korshunov( n ), computed by the run if null.
+        Apfloat korshunov;
+        // QUASI_RANDOM sampling: the number of independent replicates, which gives the standard error.
+        int replicates = 16;
+        // Reduce the variance with the sample sizes, X and Y as control variates, see ControlVariates.
+        boolean controlVariates;
+        // UNIFORM sampling: draw each sample with its complement in the middle rank, see SamplingWorker.sampleAntithetic.
+        boolean antithetic;
+        // STREAMING sampling: the file the sample is mapped to, null for direct buffers, see OffHeapBitset.
+        Path sampleFile;
     }
 
     static class DedekindResult {
         int n;
+        // null before the first sample.
         Apfloat estimate;
+        // null below 2 samples, when relativeStandardError is infinite.
         Apfloat standardDeviation;
-        int nIterations;
+        long nIterations;
         long elapsedMillis;
         Apfloat korshunov;
+        long seed;
+        double inclusionProbability;
+        double relativeStandardError = Double.POSITIVE_INFINITY;
+        // The iterations of this run, without those of the checkpoint it resumed, per second.
+        double samplesPerSecond;
+        StopReason stopReason;
+        // The variance of one plain sample / the variance of the estimate * iterations, i.e. per sample,
+        // NaN without control variates, antithetic or stratified sampling.
+        double varianceReduction = Double.NaN;
+        // varianceReduction * the time of an independent sample / the time of a sample of the run,
+        // NaN unless it was measured, see antitheticCostRatio.
+        double timeNormalizedVarianceReduction = Double.NaN;
 
         @Override
         public String toString() {
@@ -456,22 +1691,37 @@ public class DedekindMonteCarlo {
                 addTsv( result, "N/A," );
             }
             addTsv( result, String.format( outputFormat, korshunov ) );
+            if( estimate == null ) {
+                // No sample yet.
+                addTsv( result, "N/A" );
+                addTsv( result, "N/A" );
+                addTsv( result, "N/A" );
+            } else {
+                addEstimateTsv( result, outputFormat );
+            }
+            addTsv( result, String.format( outputFormat, new Apfloat( nIterations ) ) );
+            // Unknown below 2 samples.
+            addTsv( result, standardDeviation == null ? "N/A" : String.format( outputFormat, standardDeviation ) );
+            addTsv( result, formatElapsedTime( elapsedMillis ) );
+            addTsv( result, version );
+            return result.toString();
+        }
+
+        /**
+         * Appends the estimate, its ratio to D(n) and its ratio to korshunov.
+         */
+        private void addEstimateTsv( StringBuilder result, String outputFormat ) {
             addTsv( result, String.format( outputFormat, estimate ) );
             if( n < DEDEKIND_KNOWN_VALUES.length ) {
-                debug( "estimate.precision: " + estimate.precision() );
+                Trace.debug( () -> "estimate.precision: " + estimate.precision() );
                 Apfloat dn = DEDEKIND_KNOWN_VALUES[ n ];
-                debug( "dn.precision: " + dn.precision() );
+                Trace.debug( () -> "dn.precision: " + dn.precision() );
                 Apfloat ratio = estimate.divide( DEDEKIND_KNOWN_VALUES[ n ] );
                 addTsv( result, String.format( outputFormat, ratio ) );
             } else {
                 addTsv( result, "N/A,");
             }
             addTsv( result, String.format( outputFormat, estimate.divide( korshunov ) ) );
-            addTsv( result, String.format( outputFormat, new Apfloat( nIterations ) ) );
-            addTsv( result, String.format( outputFormat, standardDeviation ) );
-            addTsv( result, formatElapsedTime( elapsedMillis ) );
-            addTsv( result, version );
-            return result.toString();
         }
 
         public static void addTsv(StringBuilder sb, Object o ) {
@@ -0,0 +1,55 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+/**
+ * The live metrics of an estimation, registered as
+ * com.franklinharper.dedekind:type=Run,n=...,run=... while it runs.
+ *
+ * The estimate and its standard error are computed in double precision from
+ * sums published by the workers as they go, so they follow the run between
+ * the progress lines. The result itself is computed exactly, at the end of
+ * each batch. From n = 13 the estimate is larger than a double, and it and
+ * its standard error are infinite, but their logarithms are not.
+ */
+public interface DedekindRunMXBean {
+
+    int getN();
+
+    /**
+     * @return the iterations done so far, including those of the checkpoint the run resumed
+     */
+    long getIterations();
+
+    /**
+     * @return the maximum number of iterations of the run
+     */
+    long getTargetIterations();
+
+    double getSamplesPerSecond();
+
+    double getEstimate();
+
+    /**
+     * @return log2( the estimate )
+     */
+    double getLog2Estimate();
+
+    /**
+     * @return the standard deviation of the estimate, standardDeviation / sqrt( iterations )
+     */
+    double getStandardError();
+
+    /**
+     * @return log2( the standard error )
+     */
+    double getLog2StandardError();
+
+    double getKorshunovRatio();
+
+    /**
+     * @return the estimated time to reach the target iterations, -1 when there is no such target
+     */
+    long getEtaSeconds();
+
+    long getElapsedMillis();
+
+}
@@ -0,0 +1,168 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the (|S|, X, Y) triples of all the 2^m subsets S of the middle rank,
+ * where m = n choose k, which is feasible for n <= 6 (m <= 20).
+ *
+ * The subsets are visited in Gray code order: the t-th subset is t ^ ( t >>> 1 ),
+ * and it differs from the previous one by the n-tuple numberOfTrailingZeros( t ).
+ * For each n-tuple of rank k + 1 the number of its predecessors which are in S
+ * is kept up to date, as well as the number of successors in S of each n-tuple
+ * of rank k - 1, so a step only touches the neighbours of the flipped n-tuple
+ * instead of recounting X and Y.
+ *
+ * The Gray sequence is cut into chunks of consecutive indexes, which are
+ * enumerated in parallel. Each chunk starts from its first subset, counted from
+ * scratch.
+ */
+class ExactEnumeration {
+
+    // 2^30 subsets take a few seconds per core, n = 7 would need 2^35.
+    static final int MAX_RANK_SIZE = 30;
+    // The chunks of the Gray sequence per worker, so that the workers finish together.
+    private static final int CHUNKS_PER_WORKER = 8;
+
+    private final RankAdjacency adjacency;
+    // The successors and predecessors of each n-tuple of the middle rank.
+    private final RankAdjacency.MiddleNeighbours neighbours;
+
+    /**
+     * @throws IllegalArgumentException if the middle rank has more than MAX_RANK_SIZE n-tuples
+     */
+    ExactEnumeration( RankAdjacency adjacency ) {
+        if( adjacency.middleRank.length > MAX_RANK_SIZE ) {
+            throw new IllegalArgumentException( "Too many subsets to enumerate for n = " + adjacency.n
+                + ": 2^" + adjacency.middleRank.length );
+        }
+        this.adjacency = adjacency;
+        neighbours = adjacency.middleNeighbours();
+    }
+
+    /**
+     * @return the histogram of the (|S|, X, Y) triples of all the subsets of the middle rank
+     */
+    SampleHistogram enumerate( int nWorkers ) {
+        final int rankSize = adjacency.middleRank.length;
+        final long subsets = 1L << rankSize;
+        final long nChunks = Math.min( subsets, Long.highestOneBit( (long) nWorkers * CHUNKS_PER_WORKER - 1 ) << 1 );
+        final List< Callable< long[] > > chunks = new ArrayList< Callable< long[] > >();
+        for( long c = 0; c < nChunks; c++ ) {
+            final long from = subsets / nChunks * c;
+            final long to = subsets / nChunks * ( c + 1 );
+            chunks.add( () -> enumerate( from, to ) );
+        }
+        final SampleHistogram histogram = new SampleHistogram( rankSize );
+        final ExecutorService executor = Executors.newFixedThreadPool( nWorkers );
+        try {
+            for( Future< long[] > chunk : executor.invokeAll( chunks ) ) {
+                addCounts( chunk.get(), histogram );
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while enumerating", e );
+        } catch( ExecutionException e ) {
+            throw new IllegalStateException( "Enumeration failed", e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+        return histogram;
+    }
+
+    private int xValues() {
+        return adjacency.aboveMiddle.length + 1;
+    }
+
+    private int yValues() {
+        return adjacency.belowMiddle.length + 1;
+    }
+
+    private void addCounts( long[] counts, SampleHistogram histogram ) {
+        for( int i = 0; i < counts.length; i++ ) {
+            if( counts[ i ] != 0 ) {
+                histogram.add( i / ( xValues() * yValues() ), i / yValues() % xValues(), i % yValues(), counts[ i ] );
+            }
+        }
+    }
+
+    /**
+     * Enumerates the subsets from ^ ( from >>> 1 ) ... ( to - 1 ) ^ ( ( to - 1 ) >>> 1 ) of the Gray sequence.
+     *
+     * @return the counts of the (|S|, X, Y) triples, at index ( |S| * xValues + X ) * yValues + Y
+     */
+    private long[] enumerate( long from, long to ) {
+        final int rankSize = adjacency.middleRank.length;
+        final int yValues = yValues();
+        final int sizeStride = xValues() * yValues;
+        final long[] counts = new long[ ( rankSize + 1 ) * sizeStride ];
+        final Subset subset = new Subset();
+        final long first = from ^ ( from >>> 1 );
+        for( int i = 0; i < rankSize; i++ ) {
+            if( ( first & ( 1L << i ) ) != 0 ) {
+                subset.flip( i );
+            }
+        }
+        counts[ subset.size * sizeStride + subset.X * yValues + subset.Y ]++;
+        for( long t = from + 1; t < to; t++ ) {
+            subset.flip( Long.numberOfTrailingZeros( t ) );
+            counts[ subset.size * sizeStride + subset.X * yValues + subset.Y ]++;
+        }
+        return counts;
+    }
+
+    /**
+     * A subset S of the middle rank, with its size, X and Y.
+     */
+    private class Subset {
+        private final long[] members = new long[ adjacency.sampleWords() ];
+        // predecessorsIn[ a ] is the number of predecessors of aboveMiddle[ a ] in S
+        private final int[] predecessorsIn = new int[ adjacency.aboveMiddle.length ];
+        // successorsIn[ b ] is the number of successors of belowMiddle[ b ] in S
+        private final int[] successorsIn = new int[ adjacency.belowMiddle.length ];
+        // Each n-tuple of rank k + 1 has k + 1 predecessors.
+        private final int predecessors = adjacency.k + 1;
+        int size;
+        int X;
+        int Y = adjacency.belowMiddle.length;
+
+        /**
+         * Adds middleRank[ i ] to S, or removes it if it is in S.
+         */
+        void flip( int i ) {
+            members[ i >>> 6 ] ^= 1L << i;
+            if( ( members[ i >>> 6 ] & ( 1L << i ) ) != 0 ) {
+                size++;
+                for( int j = neighbours.successorOffsets[ i ]; j < neighbours.successorOffsets[ i + 1 ]; j++ ) {
+                    if( ++predecessorsIn[ neighbours.successors[ j ] ] == predecessors ) {
+                        X++;
+                    }
+                }
+                for( int j = neighbours.predecessorOffsets[ i ]; j < neighbours.predecessorOffsets[ i + 1 ]; j++ ) {
+                    if( successorsIn[ neighbours.predecessors[ j ] ]++ == 0 ) {
+                        Y--;
+                    }
+                }
+            } else {
+                size--;
+                for( int j = neighbours.successorOffsets[ i ]; j < neighbours.successorOffsets[ i + 1 ]; j++ ) {
+                    if( predecessorsIn[ neighbours.successors[ j ] ]-- == predecessors ) {
+                        X--;
+                    }
+                }
+                for( int j = neighbours.predecessorOffsets[ i ]; j < neighbours.predecessorOffsets[ i + 1 ]; j++ ) {
+                    if( --successorsIn[ neighbours.predecessors[ j ] ] == 0 ) {
+                        Y++;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.random.RandomGenerator;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+import org.apfloat.Apint;
+
+/**
+ * Sampling where each n-tuple of the middle rank is included in S with a
+ * probability p which is not necessarily 1/2.
+ *
+ * p is a multiple of 2^-16, represented by its numerator, so that the samples
+ * can be drawn 64 bits at a time and weighted exactly. A sample S of size s is
+ * drawn with probability p^s * (1-p)^(m-s) instead of 2^-m, where m is the size
+ * of the middle rank, so its value is multiplied by the likelihood ratio
+ *
+ *   2^-m / ( p^s * (1-p)^(m-s) ) = 1 / ( (2p)^s * (2(1-p))^(m-s) )
+ *
+ * which keeps the estimate unbiased.
+ */
+class ImportanceSampling {
+
+    static final int PROBABILITY_BITS = 16;
+    static final int ONE = 1 << PROBABILITY_BITS;
+    static final int ONE_HALF = ONE / 2;
+
+    // The precision, in digits, of the likelihood ratios.
+    private static final int PRECISION = 100;
+
+    // The candidates for p tried by the pilot phase.
+    private static final double MIN_PILOT_PROBABILITY = 0.05;
+    private static final double MAX_PILOT_PROBABILITY = 0.95;
+    private static final double PILOT_PROBABILITY_STEP = 0.005;
+
+    private ImportanceSampling() {
+    }
+
+    /**
+     * @return the numerator of the multiple of 2^-16 closest to probability
+     */
+    static int toNumerator( double probability ) {
+        if( !( probability > 0 && probability < 1 ) ) {
+            throw new IllegalArgumentException( "The inclusion probability must be in ]0, 1[: " + probability );
+        }
+        return (int) Math.max( 1, Math.min( ONE - 1, Math.round( probability * ONE ) ) );
+    }
+
+    static double toProbability( int numerator ) {
+        return (double) numerator / ONE;
+    }
+
+    /**
+     * Refills sample in place with a random subset of the middle rank, each of
+     * its rankSize n-tuples being included with probability numerator / 2^16.
+     *
+     * Each word is built from the binary expansion of p, least significant bit
+     * first: a bit of the word which is 1 with probability q becomes 1 with
+     * probability ( b + q ) / 2 when it is or-ed (b = 1) or and-ed (b = 0) with
+     * a uniform random bit. So each word costs at most 16 calls to the generator.
+     */
+    static void randomSample( RandomGenerator random, int rankSize, int numerator, long[] sample ) {
+        final int words = ( rankSize + 63 ) >>> 6;
+        final int lowestBit = Integer.numberOfTrailingZeros( numerator );
+        for( int i = 0; i < words; i++ ) {
+            long word = 0;
+            for( int b = lowestBit; b < PROBABILITY_BITS; b++ ) {
+                if( ( numerator & ( 1 << b ) ) != 0 ) {
+                    word |= random.nextLong();
+                } else {
+                    word &= random.nextLong();
+                }
+            }
+            sample[ i ] = word;
+        }
+        if( ( rankSize & 63 ) != 0 ) {
+            sample[ words - 1 ] &= ( 1L << rankSize ) - 1;
+        }
+    }
+
+    /**
+     * @return the likelihood ratios of the samples of size 0 to rankSize:
+     * 2^(16 m) / ( (2 numerator)^s * (2 (2^16 - numerator))^(m-s) ), all exactly 1 when p = 1/2.
+     */
+    static Apfloat[] likelihoodRatios( int rankSize, int numerator ) {
+        Apfloat[] ratios = new Apfloat[ rankSize + 1 ];
+        if( numerator == ONE_HALF ) {
+            for( int s = 0; s <= rankSize; s++ ) {
+                ratios[ s ] = Apint.ONE;
+            }
+            return ratios;
+        }
+        Apfloat one = new Apfloat( ONE, PRECISION );
+        Apfloat included = one.divide( new Apint( 2L * numerator ) );
+        Apfloat excluded = one.divide( new Apint( 2L * ( ONE - numerator ) ) );
+        for( int s = 0; s <= rankSize; s++ ) {
+            ratios[ s ] = ApfloatMath.pow( included, s ).multiply( ApfloatMath.pow( excluded, rankSize - s ) );
+        }
+        return ratios;
+    }
+
+    /**
+     * Chooses the inclusion probability from a pilot run with p = 1/2.
+     *
+     * The variance of the weighted estimator with probability p is its second
+     * moment minus the square of D(n), which does not depend on p. Under the
+     * uniform measure the second moment is E[ v^2 * ratio_p( |S| ) ], which is
+     * estimated from the pilot samples for each candidate p, in the log domain
+     * because the terms span hundreds of orders of magnitude.
+     *
+     * @return the numerator of the candidate probability with the smallest estimated second moment
+     */
+    static int pilotNumerator( int n, SampleHistogram pilot ) {
+        final int rankSize = pilot.maxSize();
+        // sumOfSquares[ s ] = sum of v^2 over the pilot samples of size s
+        final Apint[] sumOfSquares = new Apint[ rankSize + 1 ];
+        pilot.forEach( ( size, X, Y, count ) -> {
+            Apint sampleValue = DedekindMonteCarlo.sampleValue( n, X, Y );
+            Apint squares = sampleValue.multiply( sampleValue ).multiply( new Apint( count ) );
+            sumOfSquares[ size ] = sumOfSquares[ size ] == null ? squares : sumOfSquares[ size ].add( squares );
+        } );
+        final double[] logSumOfSquares = new double[ rankSize + 1 ];
+        for( int s = 0; s <= rankSize; s++ ) {
+            logSumOfSquares[ s ] = sumOfSquares[ s ] == null
+                ? Double.NEGATIVE_INFINITY
+                : ApfloatMath.log( new Apfloat( sumOfSquares[ s ].toString(), 20 ) ).doubleValue();
+        }
+
+        int bestNumerator = ONE_HALF;
+        double bestLogSecondMoment = Double.POSITIVE_INFINITY;
+        for( double p = MIN_PILOT_PROBABILITY; p <= MAX_PILOT_PROBABILITY; p += PILOT_PROBABILITY_STEP ) {
+            int numerator = toNumerator( p );
+            double logIncluded = -Math.log( 2 * toProbability( numerator ) );
+            double logExcluded = -Math.log( 2 * ( 1 - toProbability( numerator ) ) );
+            double max = Double.NEGATIVE_INFINITY;
+            double[] terms = new double[ rankSize + 1 ];
+            for( int s = 0; s <= rankSize; s++ ) {
+                terms[ s ] = logSumOfSquares[ s ] + s * logIncluded + ( rankSize - s ) * logExcluded;
+                max = Math.max( max, terms[ s ] );
+            }
+            double sum = 0;
+            for( int s = 0; s <= rankSize; s++ ) {
+                sum += Math.exp( terms[ s ] - max );
+            }
+            double logSecondMoment = max + Math.log( sum );
+            if( logSecondMoment < bestLogSecondMoment ) {
+                bestLogSecondMoment = logSecondMoment;
+                bestNumerator = numerator;
+            }
+        }
+        return bestNumerator;
+    }
+
+}
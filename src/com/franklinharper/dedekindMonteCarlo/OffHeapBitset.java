@@ -0,0 +1,145 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.random.RandomGenerator;
+
+/**
+ * A bitset with long indexes outside of the Java heap, in direct buffers or in
+ * a memory-mapped file, for the samples of the large n whose middle rank has
+ * hundreds of millions of n-tuples, e.g. 155117520 for n = 30, so that the
+ * sample is neither scanned nor moved by the garbage collector.
+ *
+ * A buffer has at most 2^31 - 1 bytes, so the words are split into chunks of
+ * 2^chunkBits words. The direct buffers count against -XX:MaxDirectMemorySize,
+ * which is the maximum heap size by default, the mapped files do not.
+ */
+class OffHeapBitset {
+
+    // 2^27 words, 1 GiB.
+    static final int DEFAULT_CHUNK_BITS = 27;
+
+    private final long size;
+    private final int chunkBits;
+    private final LongBuffer[] chunks;
+
+    private OffHeapBitset( long size, int chunkBits, LongBuffer[] chunks ) {
+        this.size = size;
+        this.chunkBits = chunkBits;
+        this.chunks = chunks;
+    }
+
+    /**
+     * @return a bitset of size bits, all clear, in direct buffers
+     */
+    static OffHeapBitset allocate( long size ) {
+        return allocate( size, DEFAULT_CHUNK_BITS );
+    }
+
+    static OffHeapBitset allocate( long size, int chunkBits ) {
+        final LongBuffer[] chunks = new LongBuffer[ chunkCount( size, chunkBits ) ];
+        for( int c = 0; c < chunks.length; c++ ) {
+            chunks[ c ] = ByteBuffer.allocateDirect( chunkBytes( size, chunkBits, c ) ).order( ByteOrder.nativeOrder() ).asLongBuffer();
+        }
+        return new OffHeapBitset( size, chunkBits, chunks );
+    }
+
+    /**
+     * Maps file, which is created or extended as needed, to a bitset of size bits.
+     * The bits of an existing file are kept. The file stays mapped until the
+     * bitset is garbage collected.
+     *
+     * @throws UncheckedIOException if the file cannot be mapped
+     */
+    static OffHeapBitset map( Path file, long size ) {
+        return map( file, size, DEFAULT_CHUNK_BITS );
+    }
+
+    static OffHeapBitset map( Path file, long size, int chunkBits ) {
+        final LongBuffer[] chunks = new LongBuffer[ chunkCount( size, chunkBits ) ];
+        try( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            for( int c = 0; c < chunks.length; c++ ) {
+                final long position = (long) c << ( chunkBits + 3 );
+                chunks[ c ] = channel.map( FileChannel.MapMode.READ_WRITE, position, chunkBytes( size, chunkBits, c ) )
+                    .order( ByteOrder.nativeOrder() ).asLongBuffer();
+            }
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Cannot map " + file, e );
+        }
+        return new OffHeapBitset( size, chunkBits, chunks );
+    }
+
+    private static int chunkCount( long size, int chunkBits ) {
+        if( size < 0 || chunkBits < 0 || chunkBits > 27 ) {
+            throw new IllegalArgumentException( "Invalid bitset size " + size + " or chunk size 2^" + chunkBits );
+        }
+        return Math.toIntExact( ( words( size ) + ( 1L << chunkBits ) - 1 ) >>> chunkBits );
+    }
+
+    private static int chunkBytes( long size, int chunkBits, int chunk ) {
+        return (int) Math.min( 1L << chunkBits, words( size ) - ( (long) chunk << chunkBits ) ) * Long.BYTES;
+    }
+
+    private static long words( long size ) {
+        return ( size + 63 ) >>> 6;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long words() {
+        return words( size );
+    }
+
+    long word( long index ) {
+        return chunks[ (int) ( index >>> chunkBits ) ].get( (int) ( index & ( ( 1L << chunkBits ) - 1 ) ) );
+    }
+
+    void setWord( long index, long word ) {
+        chunks[ (int) ( index >>> chunkBits ) ].put( (int) ( index & ( ( 1L << chunkBits ) - 1 ) ), word );
+    }
+
+    boolean get( long bit ) {
+        return ( word( bit >>> 6 ) & ( 1L << bit ) ) != 0;
+    }
+
+    void set( long bit ) {
+        setWord( bit >>> 6, word( bit >>> 6 ) | ( 1L << bit ) );
+    }
+
+    /**
+     * Refills the bitset with random bits, each set with probability 1/2, in
+     * the same order as DedekindMonteCarlo.randomSample: one call to the
+     * generator per word, the bits beyond size cleared.
+     */
+    void randomize( RandomGenerator random ) {
+        final long words = words();
+        for( long i = 0; i < words; i++ ) {
+            setWord( i, random.nextLong() );
+        }
+        if( ( size & 63 ) != 0 ) {
+            setWord( words - 1, word( words - 1 ) & ( ( 1L << size ) - 1 ) );
+        }
+    }
+
+    /**
+     * @return the number of bits which are set
+     */
+    long cardinality() {
+        long cardinality = 0;
+        for( LongBuffer chunk : chunks ) {
+            for( int i = 0; i < chunk.limit(); i++ ) {
+                cardinality += Long.bitCount( chunk.get( i ) );
+            }
+        }
+        return cardinality;
+    }
+
+}
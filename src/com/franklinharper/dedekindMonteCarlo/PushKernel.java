@@ -0,0 +1,77 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+
+/**
+ * Counts X and Y of a sample in one pass over the n-tuples of the sample,
+ * instead of one pass over each of the ranks k + 1 and k - 1 like calculateX
+ * and calculateY.
+ *
+ * Each n-tuple of the sample increments the covered counters of its successors,
+ * and blocks its predecessors. X is the number of counters which reach k + 1,
+ * the number of predecessors of an n-tuple of rank k + 1, and Y the number of
+ * n-tuples of rank k - 1 which are not blocked. So the work is proportional to
+ * |S| ( n - k + k ), plus clearing the counters, whatever the number of n-tuples
+ * with a predecessor outside of the sample. See RankAdjacency.middleNeighbours.
+ */
+class PushKernel {
+
+    private final RankAdjacency adjacency;
+    private final RankAdjacency.MiddleNeighbours neighbours;
+    // covered[ j ] is the number of the predecessors of aboveMiddle[ j ] which are in the sample,
+    // at most k + 1 <= 16 for the n whose ranks fit in RankAdjacency.
+    private final byte[] covered;
+    // blocked[ j ] is true iff a successor of belowMiddle[ j ] is in the sample.
+    private final boolean[] blocked;
+    private int X;
+    private int Y;
+
+    PushKernel( RankAdjacency adjacency ) {
+        this.adjacency = adjacency;
+        this.neighbours = adjacency.middleNeighbours();
+        this.covered = new byte[ adjacency.aboveMiddle.length ];
+        this.blocked = new boolean[ adjacency.belowMiddle.length ];
+    }
+
+    /**
+     * Counts X and Y of sample, a bitset over the indexes of the middle rank.
+     */
+    void count( long[] sample ) {
+        Arrays.fill( covered, (byte) 0 );
+        Arrays.fill( blocked, false );
+        final int[] successorOffsets = neighbours.successorOffsets;
+        final int[] successors = neighbours.successors;
+        final int[] predecessorOffsets = neighbours.predecessorOffsets;
+        final int[] predecessors = neighbours.predecessors;
+        final int full = adjacency.k + 1;
+        int X = 0;
+        int blockedCount = 0;
+        for( int w = 0; w < sample.length; w++ ) {
+            for( long word = sample[ w ]; word != 0; word &= word - 1 ) {
+                final int i = ( w << 6 ) | Long.numberOfTrailingZeros( word );
+                for( int j = successorOffsets[ i ]; j < successorOffsets[ i + 1 ]; j++ ) {
+                    if( ++covered[ successors[ j ] ] == full ) {
+                        X++;
+                    }
+                }
+                for( int j = predecessorOffsets[ i ]; j < predecessorOffsets[ i + 1 ]; j++ ) {
+                    if( !blocked[ predecessors[ j ] ] ) {
+                        blocked[ predecessors[ j ] ] = true;
+                        blockedCount++;
+                    }
+                }
+            }
+        }
+        this.X = X;
+        this.Y = blocked.length - blockedCount;
+    }
+
+    int X() {
+        return X;
+    }
+
+    int Y() {
+        return Y;
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Randomized quasi-Monte Carlo sampling: the samples of a replicate are the
+ * first bits of the coordinates of the first 2^r points of a Sobol' sequence
+ * in m dimensions, one per n-tuple of the middle rank, xor-ed with a random
+ * digital shift.
+ *
+ * The first bit of coordinate j of point t is the parity of t & rows[ j ]:
+ * the top bits of the direction numbers of a Sobol' dimension follow the
+ * linear recurrence of its primitive polynomial. Dimension 0 is the van der
+ * Corput sequence, dimension j > 0 uses the j-th primitive polynomial by
+ * increasing degree s, with the top bits of its s initial direction numbers
+ * 1 followed by the bits of its index among the polynomials of degree s.
+ *
+ * So the samples of a replicate are a coset of a linear code: every n-tuple is
+ * in exactly half of them, as are most pairs of n-tuples, which plain random
+ * samples only achieve on average. The digital shift keeps each replicate an
+ * unbiased estimate, and the standard error is that of the replicate estimates.
+ * The samples are visited in Gray code order, so the next sample is the
+ * current one xor-ed with one column of the generator matrix.
+ */
+class QuasiRandomSampling {
+
+    // The replicates must be independent, so the points of one are at most 2^62.
+    static final int MAX_LOG2_POINTS = 62;
+
+    private final RankAdjacency adjacency;
+    private final int log2Points;
+    // columns[ c ] is the sample which is xor-ed into the samples of the points
+    // whose index has bit c set.
+    private final long[][] columns;
+
+    /**
+     * @param log2Points the base 2 logarithm of the number of samples of a replicate
+     */
+    QuasiRandomSampling( RankAdjacency adjacency, int log2Points ) {
+        if( log2Points < 0 || log2Points > MAX_LOG2_POINTS ) {
+            throw new IllegalArgumentException( "The points of a replicate must be 2^0 ... 2^" + MAX_LOG2_POINTS + ": 2^" + log2Points );
+        }
+        this.adjacency = adjacency;
+        this.log2Points = log2Points;
+        final int rankSize = adjacency.middleRank.length;
+        final long[] rows = firstBitRows( rankSize, log2Points );
+        columns = new long[ log2Points ][ adjacency.sampleWords() ];
+        for( int j = 0; j < rankSize; j++ ) {
+            for( int c = 0; c < log2Points; c++ ) {
+                if( ( rows[ j ] & ( 1L << c ) ) != 0 ) {
+                    columns[ c ][ j >>> 6 ] |= 1L << j;
+                }
+            }
+        }
+    }
+
+    long points() {
+        return 1L << log2Points;
+    }
+
+    /**
+     * Adds the 2^log2Points samples of one replicate, shifted by random bits, to histogram.
+     */
+    void replicate( RandomGenerator random, SampleHistogram histogram ) {
+        final long[] sample = new long[ adjacency.sampleWords() ];
+        DedekindMonteCarlo.randomSample( random, adjacency.middleRank.length, sample );
+        final long points = points();
+        for( long t = 0; t < points; t++ ) {
+            if( t > 0 ) {
+                final long[] column = columns[ Long.numberOfTrailingZeros( t ) ];
+                for( int w = 0; w < sample.length; w++ ) {
+                    sample[ w ] ^= column[ w ];
+                }
+            }
+            histogram.add( DedekindMonteCarlo.sampleSize( sample ), DedekindMonteCarlo.calculateX( adjacency, sample ),
+                DedekindMonteCarlo.calculateY( adjacency, sample ) );
+        }
+    }
+
+    /**
+     * @return for each of the dimensions, the bits of the point index whose parity is the first bit of the coordinate
+     */
+    static long[] firstBitRows( int dimensions, int bits ) {
+        final long[] rows = new long[ dimensions ];
+        if( dimensions == 0 ) {
+            return rows;
+        }
+        // van der Corput: the first bit of the radical inverse of t is the last bit of t.
+        rows[ 0 ] = 1;
+        final List< Long > polynomials = primitivePolynomials( dimensions - 1 );
+        int degree = 0;
+        int indexInDegree = 0;
+        for( int j = 1; j < dimensions; j++ ) {
+            final long polynomial = polynomials.get( j - 1 );
+            final int s = 63 - Long.numberOfLeadingZeros( polynomial );
+            indexInDegree = s == degree ? indexInDegree + 1 : 0;
+            degree = s;
+            // b[ 0 ] ... b[ bits - 1 ]: b[ i ] = a_1 b[ i - 1 ] ^ ... ^ a_( s - 1 ) b[ i - s + 1 ] ^ b[ i - s ]
+            // where polynomial = x^s + a_1 x^( s - 1 ) + ... + a_( s - 1 ) x + 1.
+            long row = 0;
+            for( int i = 0; i < bits; i++ ) {
+                long bit;
+                if( i == 0 ) {
+                    bit = 1;
+                } else if( i < s ) {
+                    bit = ( indexInDegree >>> ( i - 1 ) ) & 1;
+                } else {
+                    bit = ( row >>> ( i - s ) ) & 1;
+                    for( int a = 1; a < s; a++ ) {
+                        bit ^= ( polynomial >>> ( s - a ) ) & ( row >>> ( i - a ) ) & 1;
+                    }
+                }
+                row |= bit << i;
+            }
+            rows[ j ] = row;
+        }
+        return rows;
+    }
+
+    /**
+     * @return the first count primitive polynomials over GF(2), by increasing degree and value,
+     * as bit masks: bit i is the coefficient of x^i
+     */
+    static List< Long > primitivePolynomials( int count ) {
+        final List< Long > polynomials = new ArrayList< Long >( count );
+        for( int degree = 1; polynomials.size() < count; degree++ ) {
+            // x^degree and 1 are terms of all the primitive polynomials.
+            for( long polynomial = ( 1L << degree ) | 1; polynomial < 2L << degree && polynomials.size() < count; polynomial += 2 ) {
+                if( isPrimitive( polynomial, degree ) ) {
+                    polynomials.add( polynomial );
+                }
+            }
+        }
+        return polynomials;
+    }
+
+    /**
+     * A polynomial of degree s is primitive iff x has order 2^s - 1 modulo the polynomial.
+     */
+    private static boolean isPrimitive( long polynomial, int degree ) {
+        final long order = ( 1L << degree ) - 1;
+        // x, reduced modulo the polynomial.
+        final long x = degree == 1 ? 1 : 2;
+        if( power( x, order, polynomial, degree ) != 1 ) {
+            return false;
+        }
+        // No proper divisor of the order may be the order of x: try the prime factors q of the order.
+        long rest = order;
+        for( long q = 2; rest > 1; q++ ) {
+            if( q * q > rest ) {
+                q = rest;
+            }
+            if( rest % q == 0 ) {
+                if( power( x, order / q, polynomial, degree ) == 1 ) {
+                    return false;
+                }
+                while( rest % q == 0 ) {
+                    rest /= q;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return base^exponent modulo polynomial, all polynomials over GF(2) as bit masks
+     */
+    private static long power( long base, long exponent, long polynomial, int degree ) {
+        long result = 1;
+        for( long e = exponent; e != 0; e >>>= 1 ) {
+            if( ( e & 1 ) != 0 ) {
+                result = multiply( result, base, polynomial, degree );
+            }
+            base = multiply( base, base, polynomial, degree );
+        }
+        return result;
+    }
+
+    private static long multiply( long a, long b, long polynomial, int degree ) {
+        long product = 0;
+        for( ; b != 0; b >>>= 1 ) {
+            if( ( b & 1 ) != 0 ) {
+                product ^= a;
+            }
+            a <<= 1;
+            if( ( a >>> degree ) != 0 ) {
+                a ^= polynomial;
+            }
+        }
+        return product;
+    }
+
+}
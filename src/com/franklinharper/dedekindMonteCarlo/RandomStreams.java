@@ -0,0 +1,117 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGenerator.JumpableGenerator;
+import java.util.random.RandomGenerator.LeapableGenerator;
+import java.util.random.RandomGenerator.SplittableGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+/**
+ * A reproducible sequence of independent generators of the algorithm, e.g.
+ * "SplittableRandom", "L64X128MixRandom", "Xoshiro256PlusPlus" or "Random",
+ * derived from seed.
+ *
+ * Splittable generators are split from a master generator seeded with seed,
+ * jumpable ones are successive jumps of it. Other generators, such as Random,
+ * are seeded with successive values of a SplittableRandom seeded with seed.
+ *
+ * The java.util.random generators do not expose their state, so a checkpoint
+ * records how many streams were derived instead: skip( derived ) on a new
+ * instance with the same algorithm and seed brings it back to the same point.
+ *
+ * The shards of a run, which may run in different processes, use the same
+ * algorithm and seed and distinct shard numbers. Each shard derives its streams
+ * from its own master generator: the ( shard + 1 )-th split of the master
+ * generator seeded with seed, or its ( shard + 1 )-th leap for the leapable
+ * ones, whose leaps are much longer than their jumps. Other generators use the
+ * ( shard + 1 )-th split of the SplittableRandom. The streams of an unsharded
+ * run are derived from the master generator itself, and may overlap those of the
+ * shards, so its checkpoint cannot be merged with theirs, see Checkpoint.merge.
+ */
+class RandomStreams {
+
+    static final int NO_SHARD = -1;
+
+    final String algorithm;
+    final long seed;
+    final int shard;
+    private final RandomGeneratorFactory< RandomGenerator > factory;
+    private final RandomGenerator master;
+    private final SplittableRandom seeds;
+    private long derived;
+
+    /**
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    RandomStreams( String algorithm, long seed ) {
+        this( algorithm, seed, NO_SHARD );
+    }
+
+    /**
+     * @param shard a number >= 0, or NO_SHARD when the run is not sharded
+     * @throws IllegalArgumentException if the algorithm is not available, or
+     * is neither splittable nor leapable but jumpable, so that shards could overlap
+     */
+    RandomStreams( String algorithm, long seed, int shard ) {
+        this.algorithm = algorithm;
+        this.seed = seed;
+        this.shard = shard;
+        this.factory = RandomGeneratorFactory.of( algorithm );
+        RandomGenerator root = factory.create( seed );
+        SplittableRandom rootSeeds = new SplittableRandom( seed );
+        RandomGenerator shardMaster = root;
+        SplittableRandom shardSeeds = rootSeeds;
+        if( shard != NO_SHARD ) {
+            if( !( root instanceof SplittableGenerator ) && !( root instanceof LeapableGenerator )
+                && root instanceof JumpableGenerator ) {
+                throw new IllegalArgumentException( "Sharded runs are not supported for " + algorithm );
+            }
+            for( int i = 0; i <= shard; i++ ) {
+                if( root instanceof SplittableGenerator ) {
+                    shardMaster = ( (SplittableGenerator) root ).split();
+                } else if( root instanceof LeapableGenerator ) {
+                    // Not copyAndLeap, which returns the state before the leap, that of the unsharded master.
+                    ( (LeapableGenerator) root ).leap();
+                    shardMaster = ( (LeapableGenerator) root ).copy();
+                } else {
+                    shardSeeds = rootSeeds.split();
+                }
+            }
+        }
+        this.master = shardMaster;
+        this.seeds = shardSeeds;
+    }
+
+    /**
+     * @return the next generator of the sequence
+     */
+    RandomGenerator next() {
+        derived++;
+        if( master instanceof SplittableGenerator ) {
+            return ( (SplittableGenerator) master ).split();
+        } else if( master instanceof JumpableGenerator ) {
+            return ( (JumpableGenerator) master ).copyAndJump();
+        } else {
+            return factory.create( seeds.nextLong() );
+        }
+    }
+
+    /**
+     * Derives and discards count generators. Creating a generator is cheap
+     * compared to the samples it draws, so resuming a run costs little.
+     */
+    void skip( long count ) {
+        for( long i = 0; i < count; i++ ) {
+            next();
+        }
+    }
+
+    /**
+     * @return the number of generators derived so far
+     */
+    long derived() {
+        return derived;
+    }
+
+}
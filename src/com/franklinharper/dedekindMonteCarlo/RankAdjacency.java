@@ -0,0 +1,191 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The neighbours in the middle rank k of the n-tuples of rank k + 1 and k - 1.
+ *
+ * A sample is a bitset over the indexes of the middle rank: bit i is set iff
+ * middleRank[ i ] is in the sample. For each n-tuple of rank k + 1 the indexes
+ * of its predecessors are grouped by sample word into (word, mask) pairs, so
+ * "all predecessors are in S" becomes ( S[ word ] & mask ) == mask for each pair.
+ * Likewise for the successors of the n-tuples of rank k - 1, where "none of the
+ * successors are in S" becomes ( S[ word ] & mask ) == 0.
+ *
+ * The index of an n-tuple in the middle rank is its colex rank, see Combinatorics.
+ *
+ * The tables only depend on n and k, so they are built once and shared by all
+ * the runs of the JVM.
+ */
+class RankAdjacency {
+
+    private static final ConcurrentHashMap< Long, RankAdjacency > CACHE = new ConcurrentHashMap< Long, RankAdjacency >();
+
+    final int n;
+    final int k;
+    final int[] middleRank;
+    final int[] aboveMiddle;
+    final int[] belowMiddle;
+
+    // CSR: the indexes in middleRank of the predecessors of aboveMiddle[ i ]
+    // are predecessors[ predecessorOffsets[ i ] ] ... predecessors[ predecessorOffsets[ i + 1 ] - 1 ]
+    final int[] predecessorOffsets;
+    final int[] predecessors;
+    // Same for the successors of belowMiddle[ i ].
+    final int[] successorOffsets;
+    final int[] successors;
+
+    // The predecessors of aboveMiddle[ i ] are the bits of
+    // predecessorMasks[ j ] in sample word predecessorWords[ j ], for predecessorMaskOffsets[ i ] <= j < predecessorMaskOffsets[ i + 1 ]
+    final int[] predecessorMaskOffsets;
+    final int[] predecessorWords;
+    final long[] predecessorMasks;
+    // Same for the successors of belowMiddle[ i ].
+    final int[] successorMaskOffsets;
+    final int[] successorWords;
+    final long[] successorMasks;
+
+    // Built on first use, see middleNeighbours.
+    private volatile MiddleNeighbours middleNeighbours;
+
+    /**
+     * The CSR above inverted: the neighbours of the n-tuples of the middle rank.
+     */
+    static class MiddleNeighbours {
+        // The indexes in aboveMiddle of the successors of middleRank[ i ]
+        // are successors[ successorOffsets[ i ] ] ... successors[ successorOffsets[ i + 1 ] - 1 ]
+        final int[] successorOffsets;
+        final int[] successors;
+        // Same for the indexes in belowMiddle of the predecessors of middleRank[ i ].
+        final int[] predecessorOffsets;
+        final int[] predecessors;
+
+        private MiddleNeighbours( RankAdjacency adjacency ) {
+            final int rankSize = adjacency.middleRank.length;
+            successorOffsets = new int[ rankSize + 1 ];
+            successors = new int[ adjacency.predecessors.length ];
+            invert( adjacency.predecessorOffsets, adjacency.predecessors, successorOffsets, successors );
+            predecessorOffsets = new int[ rankSize + 1 ];
+            predecessors = new int[ adjacency.successors.length ];
+            invert( adjacency.successorOffsets, adjacency.successors, predecessorOffsets, predecessors );
+        }
+
+        /**
+         * Inverts a CSR relation from i to neighbours[ offsets[ i ] ... offsets[ i + 1 ] - 1 ].
+         */
+        private static void invert( int[] offsets, int[] neighbours, int[] inverseOffsets, int[] inverse ) {
+            for( int neighbour : neighbours ) {
+                inverseOffsets[ neighbour + 1 ]++;
+            }
+            for( int i = 1; i < inverseOffsets.length; i++ ) {
+                inverseOffsets[ i ] += inverseOffsets[ i - 1 ];
+            }
+            final int[] next = Arrays.copyOf( inverseOffsets, inverseOffsets.length - 1 );
+            for( int i = 0; i + 1 < offsets.length; i++ ) {
+                for( int j = offsets[ i ]; j < offsets[ i + 1 ]; j++ ) {
+                    inverse[ next[ neighbours[ j ] ]++ ] = i;
+                }
+            }
+        }
+    }
+
+    static RankAdjacency of( int n, int k ) {
+        return CACHE.computeIfAbsent( ( (long) n << 32 ) | k, key -> {
+            DedekindEvents.RankGeneration event = new DedekindEvents.RankGeneration();
+            event.begin();
+            RankAdjacency adjacency = new RankAdjacency( n, k );
+            event.n = n;
+            event.k = k;
+            event.commit();
+            return adjacency;
+        } );
+    }
+
+    private RankAdjacency( int n, int k ) {
+        this.n = n;
+        this.k = k;
+        middleRank = DedekindMonteCarlo.generateNTuplesOfRank_K( n, k );
+        aboveMiddle = DedekindMonteCarlo.generateNTuplesOfRank_K( n, k + 1 );
+        belowMiddle = DedekindMonteCarlo.generateNTuplesOfRank_K( n, k - 1 );
+
+        predecessorOffsets = new int[ aboveMiddle.length + 1 ];
+        predecessors = new int[ aboveMiddle.length * ( k + 1 ) ];
+        for( int i = 0; i < aboveMiddle.length; i++ ) {
+            int next = predecessorOffsets[ i ];
+            for( int bitmask = 1; bitmask < ( 1 << n ); bitmask = bitmask << 1 ) {
+                if( ( aboveMiddle[ i ] & bitmask ) != 0 ) {
+                    predecessors[ next++ ] = (int) Combinatorics.colexRank( aboveMiddle[ i ] ^ bitmask );
+                }
+            }
+            predecessorOffsets[ i + 1 ] = next;
+        }
+
+        successorOffsets = new int[ belowMiddle.length + 1 ];
+        successors = new int[ belowMiddle.length * ( n - k + 1 ) ];
+        for( int i = 0; i < belowMiddle.length; i++ ) {
+            int next = successorOffsets[ i ];
+            for( int bitmask = 1; bitmask < ( 1 << n ); bitmask = bitmask << 1 ) {
+                if( ( belowMiddle[ i ] & bitmask ) == 0 ) {
+                    successors[ next++ ] = (int) Combinatorics.colexRank( belowMiddle[ i ] ^ bitmask );
+                }
+            }
+            successorOffsets[ i + 1 ] = next;
+        }
+
+        predecessorMaskOffsets = new int[ aboveMiddle.length + 1 ];
+        predecessorWords = new int[ predecessors.length ];
+        predecessorMasks = new long[ predecessors.length ];
+        compileMasks( predecessorOffsets, predecessors, predecessorMaskOffsets, predecessorWords, predecessorMasks );
+
+        successorMaskOffsets = new int[ belowMiddle.length + 1 ];
+        successorWords = new int[ successors.length ];
+        successorMasks = new long[ successors.length ];
+        compileMasks( successorOffsets, successors, successorMaskOffsets, successorWords, successorMasks );
+    }
+
+    /**
+     * @return the neighbours of the n-tuples of the middle rank, which are only
+     * needed by PushKernel and ExactEnumeration, so they are built by the first call
+     */
+    MiddleNeighbours middleNeighbours() {
+        MiddleNeighbours neighbours = middleNeighbours;
+        if( neighbours == null ) {
+            synchronized( this ) {
+                neighbours = middleNeighbours;
+                if( neighbours == null ) {
+                    neighbours = new MiddleNeighbours( this );
+                    middleNeighbours = neighbours;
+                }
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * @return the number of words of a sample bitset over the middle rank.
+     */
+    int sampleWords() {
+        return ( middleRank.length + 63 ) >>> 6;
+    }
+
+    private static void compileMasks( int[] offsets, int[] neighbours, int[] maskOffsets, int[] words, long[] masks ) {
+        int next = 0;
+        for( int i = 0; i + 1 < offsets.length; i++ ) {
+            maskOffsets[ i ] = next;
+            for( int j = offsets[ i ]; j < offsets[ i + 1 ]; j++ ) {
+                int word = neighbours[ j ] >>> 6;
+                int m = maskOffsets[ i ];
+                while( m < next && words[ m ] != word ) {
+                    m++;
+                }
+                if( m == next ) {
+                    words[ next++ ] = word;
+                }
+                masks[ m ] |= 1L << neighbours[ j ];
+            }
+        }
+        maskOffsets[ offsets.length - 1 ] = next;
+    }
+
+}
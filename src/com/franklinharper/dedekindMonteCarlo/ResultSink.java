@@ -0,0 +1,149 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apfloat.Apfloat;
+
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.DedekindResult;
+
+/**
+ * Receives the progress snapshots and the final result of a run as records,
+ * with the numbers at full precision, unlike DedekindResult.toString. The
+ * numbers with more than MAX_PLAIN_DIGITS integer digits are written in
+ * scientific notation, rather than with their whole decimal expansion.
+ *
+ * The fields of a record are, in this order: type ("progress" or "result"), n,
+ * estimate, standardDeviation, relativeStandardError, iterations, elapsedMillis,
+ * samplesPerSecond, korshunovRatio (estimate / korshunov( n )), seed,
+ * inclusionProbability, stopReason, varianceReduction and timeNormalizedVarianceReduction.
+ * Fields without a finite value are null in JSON and empty in CSV.
+ */
+abstract class ResultSink {
+
+    static final String PROGRESS = "progress";
+    static final String RESULT = "result";
+    static final long MAX_PLAIN_DIGITS = 100;
+
+    private final Writer out;
+
+    ResultSink( Writer out ) {
+        this.out = out;
+    }
+
+    /**
+     * Writes one record and flushes it, so the records can be followed while the run goes on.
+     *
+     * @param type PROGRESS or RESULT
+     */
+    void accept( String type, DedekindResult result ) {
+        try {
+            out.write( format( fields( type, result ) ) );
+            out.write( '\n' );
+            out.flush();
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Cannot write the " + type + " record", e );
+        }
+    }
+
+    /**
+     * @param fields the values of the fields, numbers and enum names as strings, null when unknown
+     * @return the record, without the line separator
+     */
+    abstract String format( Map< String, String > fields );
+
+    static Map< String, String > fields( String type, DedekindResult result ) {
+        Map< String, String > fields = new LinkedHashMap< String, String >();
+        fields.put( "type", type );
+        fields.put( "n", Integer.toString( result.n ) );
+        fields.put( "estimate", result.estimate == null ? null : number( result.estimate ) );
+        fields.put( "standardDeviation", result.standardDeviation == null ? null : number( result.standardDeviation ) );
+        fields.put( "relativeStandardError", number( result.relativeStandardError ) );
+        fields.put( "iterations", Long.toString( result.nIterations ) );
+        fields.put( "elapsedMillis", Long.toString( result.elapsedMillis ) );
+        fields.put( "samplesPerSecond", number( result.samplesPerSecond ) );
+        fields.put( "korshunovRatio", result.estimate == null || result.korshunov == null
+            ? null : number( result.estimate.divide( result.korshunov ).doubleValue() ) );
+        fields.put( "seed", Long.toString( result.seed ) );
+        fields.put( "inclusionProbability", number( result.inclusionProbability ) );
+        fields.put( "stopReason", result.stopReason == null ? null : result.stopReason.name() );
+        fields.put( "varianceReduction", number( result.varianceReduction ) );
+        fields.put( "timeNormalizedVarianceReduction", number( result.timeNormalizedVarianceReduction ) );
+        return fields;
+    }
+
+    /**
+     * @return null for NaN and the infinities, which JSON cannot represent
+     */
+    private static String number( double value ) {
+        return Double.isFinite( value ) ? Double.toString( value ) : null;
+    }
+
+    private static String number( Apfloat value ) {
+        return value.scale() <= MAX_PLAIN_DIGITS ? value.toString( true ) : value.toString( false );
+    }
+
+    /**
+     * One JSON object per line.
+     */
+    static class JsonLines extends ResultSink {
+
+        JsonLines( Writer out ) {
+            super( out );
+        }
+
+        @Override
+        String format( Map< String, String > fields ) {
+            StringBuilder record = new StringBuilder( "{" );
+            for( Map.Entry< String, String > field : fields.entrySet() ) {
+                if( record.length() > 1 ) {
+                    record.append( ',' );
+                }
+                record.append( '"' ).append( field.getKey() ).append( "\":" );
+                String value = field.getValue();
+                if( value == null ) {
+                    record.append( "null" );
+                } else if( field.getKey().equals( "type" ) || field.getKey().equals( "stopReason" ) ) {
+                    record.append( '"' ).append( value ).append( '"' );
+                } else {
+                    record.append( value );
+                }
+            }
+            return record.append( '}' ).toString();
+        }
+    }
+
+    /**
+     * Comma separated values, preceded by a header line.
+     */
+    static class Csv extends ResultSink {
+
+        private boolean header = true;
+
+        Csv( Writer out ) {
+            super( out );
+        }
+
+        @Override
+        String format( Map< String, String > fields ) {
+            StringBuilder record = new StringBuilder();
+            if( header ) {
+                record.append( String.join( ",", fields.keySet() ) ).append( '\n' );
+                header = false;
+            }
+            boolean first = true;
+            for( String value : fields.values() ) {
+                if( !first ) {
+                    record.append( ',' );
+                }
+                first = false;
+                record.append( value == null ? "" : value );
+            }
+            return record.toString();
+        }
+    }
+
+}
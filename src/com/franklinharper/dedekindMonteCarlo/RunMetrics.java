@@ -0,0 +1,230 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+
+/**
+ * The DedekindRunMXBean of an estimation.
+ *
+ * The workers add their new samples to striped adders, which do not contend
+ * with each other, and a JMX client reads the adders without stopping them.
+ * A worker adds each sample to its own Publisher, which only sums it in plain
+ * fields, and publishes these sums once per chunk of METRICS_INTERVAL
+ * iterations, so the cost is a few operations per sample, whatever the size
+ * of the histograms.
+ *
+ * The sums are those of the sample values without the multiplier 2^(n choose k),
+ * which is applied by its exponent, and Korshunov's approximation is kept as its
+ * logarithm, so that the Korshunov ratio and the logarithms of the estimate and
+ * of its standard error stay finite when they are larger than a double, from n = 13.
+ */
+class RunMetrics implements DedekindRunMXBean {
+
+    // The iterations between two publications of a worker.
+    static final long METRICS_INTERVAL = 1 << 16;
+
+    private static final String DOMAIN = "com.franklinharper.dedekind";
+    private static final AtomicLong RUNS = new AtomicLong();
+
+    private final int n;
+    private final long targetIterations;
+    // The estimate is 2^log2Multiplier * the mean of the sample values.
+    private final int log2Multiplier;
+    private final double log2Korshunov;
+    private final long startMillis = System.currentTimeMillis();
+    private final LongAdder iterations = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final DoubleAdder sumOfSquares = new DoubleAdder();
+    // The iterations of the checkpoint the run resumed, which are not part of the rate.
+    private volatile long resumedIterations;
+    private ObjectName name;
+
+    /**
+     * @param log2Multiplier n choose k, the exponent of the multiplier
+     */
+    RunMetrics( int n, long targetIterations, int log2Multiplier, Apfloat korshunov ) {
+        this.n = n;
+        this.targetIterations = targetIterations;
+        this.log2Multiplier = log2Multiplier;
+        log2Korshunov = ApfloatMath.log( korshunov ).doubleValue() / Math.log( 2 );
+    }
+
+    void setResumedIterations( long resumedIterations ) {
+        this.resumedIterations = resumedIterations;
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server.
+     */
+    void register() {
+        try {
+            name = new ObjectName( DOMAIN + ":type=Run,n=" + n + ",run=" + RUNS.incrementAndGet() );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, name );
+        } catch( JMException e ) {
+            throw new IllegalStateException( "Cannot register the metrics MBean", e );
+        }
+    }
+
+    void unregister() {
+        if( name == null ) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( name );
+        } catch( JMException e ) {
+            throw new IllegalStateException( "Cannot unregister the metrics MBean " + name, e );
+        }
+    }
+
+    /**
+     * Adds the samples of histogram, e.g. those of the checkpoint the run resumed,
+     * in one scan.
+     */
+    void add( SampleHistogram histogram, double[] likelihoodRatios ) {
+        final Publisher publisher = new Publisher( likelihoodRatios );
+        histogram.forEach( ( size, X, Y, count ) -> publisher.add( size, X, Y, count ) );
+        publisher.publish();
+    }
+
+    /**
+     * Sums the samples of one worker, which calls add and publish from its own thread.
+     */
+    class Publisher {
+        private final double[] likelihoodRatios;
+        // The samples added since the previous publication.
+        private long count;
+        private double sum;
+        private double sumOfSquares;
+
+        Publisher( double[] likelihoodRatios ) {
+            this.likelihoodRatios = likelihoodRatios;
+        }
+
+        void add( int size, int X, int Y ) {
+            final double value = sampleValue( n, X, Y ) * likelihoodRatios[ size ];
+            count++;
+            sum += value;
+            sumOfSquares += value * value;
+        }
+
+        void add( int size, int X, int Y, long count ) {
+            final double value = sampleValue( n, X, Y ) * likelihoodRatios[ size ];
+            this.count += count;
+            sum += value * count;
+            sumOfSquares += value * value * count;
+        }
+
+        /**
+         * Adds the samples since the previous call to the metrics.
+         */
+        void publish() {
+            // The samples before the iterations, so that a reader does not see more iterations than samples.
+            RunMetrics.this.sum.add( sum );
+            RunMetrics.this.sumOfSquares.add( sumOfSquares );
+            iterations.add( count );
+            count = 0;
+            sum = 0;
+            sumOfSquares = 0;
+        }
+    }
+
+    /**
+     * @return DedekindMonteCarlo.sampleValue as a double
+     */
+    static double sampleValue( int n, int X, int Y ) {
+        double value = Math.scalb( 1.0, X + Y );
+        if( n % 2 == 1 ) {
+            value = 2 * value - Math.scalb( 1.0, X );
+        }
+        return value;
+    }
+
+    @Override
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public long getIterations() {
+        return iterations.sum();
+    }
+
+    @Override
+    public long getTargetIterations() {
+        return targetIterations;
+    }
+
+    @Override
+    public double getSamplesPerSecond() {
+        return ( getIterations() - resumedIterations ) * 1000.0 / Math.max( 1, getElapsedMillis() );
+    }
+
+    @Override
+    public double getEstimate() {
+        return Math.scalb( mean(), log2Multiplier );
+    }
+
+    @Override
+    public double getLog2Estimate() {
+        return Math.log( mean() ) / Math.log( 2 ) + log2Multiplier;
+    }
+
+    @Override
+    public double getStandardError() {
+        return Math.scalb( meanStandardError(), log2Multiplier );
+    }
+
+    @Override
+    public double getLog2StandardError() {
+        return Math.log( meanStandardError() ) / Math.log( 2 ) + log2Multiplier;
+    }
+
+    @Override
+    public double getKorshunovRatio() {
+        return Math.pow( 2, getLog2Estimate() - log2Korshunov );
+    }
+
+    /**
+     * @return the mean of the sample values, NaN before the first sample
+     */
+    private double mean() {
+        long count = getIterations();
+        return count == 0 ? Double.NaN : sum.sum() / count;
+    }
+
+    /**
+     * @return the standard error of the mean of the sample values, NaN before the second sample
+     */
+    private double meanStandardError() {
+        long count = getIterations();
+        if( count < 2 ) {
+            return Double.NaN;
+        }
+        double mean = sum.sum() / count;
+        double variance = Math.max( 0, ( sumOfSquares.sum() - count * mean * mean ) / ( count - 1 ) );
+        return Math.sqrt( variance / count );
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        double rate = getSamplesPerSecond();
+        if( targetIterations == Long.MAX_VALUE || rate == 0 ) {
+            return -1;
+        }
+        return (long) Math.ceil( Math.max( 0, targetIterations - getIterations() ) / rate );
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+}
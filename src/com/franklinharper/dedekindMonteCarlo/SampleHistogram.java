@@ -0,0 +1,111 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many samples produced each (|S|, X, Y) triple.
+ *
+ * The sampling modes which do not draw S uniformly weight each sample by a
+ * function of its size |S|, so the samples are counted in one XYHistogram per
+ * size, created the first time a sample of that size is added.
+ *
+ * Antithetic sampling also needs the sum of the products of the values of the
+ * two samples of each pair, which are sums of powers of 2, see
+ * DedekindMonteCarlo.addPairProduct, so they are counted by exponent.
+ */
+class SampleHistogram {
+
+    interface CellConsumer {
+        void accept( int size, int X, int Y, long count );
+    }
+
+    private final XYHistogram[] bySize;
+    private long count;
+    // The sum of the products of the pairs is the sum of pairProducts[ e ] * 2^e.
+    private long[] pairProducts = new long[ 0 ];
+
+    /**
+     * @param rankSize the number of n-tuples in the middle rank, the largest possible sample size
+     */
+    SampleHistogram( int rankSize ) {
+        bySize = new XYHistogram[ rankSize + 1 ];
+    }
+
+    void add( int size, int X, int Y ) {
+        add( size, X, Y, 1 );
+    }
+
+    void add( int size, int X, int Y, long n ) {
+        count += n;
+        XYHistogram histogram = bySize[ size ];
+        if( histogram == null ) {
+            histogram = new XYHistogram();
+            bySize[ size ] = histogram;
+        }
+        histogram.add( X, Y, n );
+    }
+
+    /**
+     * Adds n * 2^exponent, n < 0 to subtract, to the sum of the products of the pairs.
+     */
+    void addPairProduct( int exponent, long n ) {
+        if( exponent >= pairProducts.length ) {
+            pairProducts = Arrays.copyOf( pairProducts, Math.max( exponent + 1, 2 * pairProducts.length ) );
+        }
+        pairProducts[ exponent ] += n;
+    }
+
+    /**
+     * @return the number of times 2^exponent is in the sum of the products of the pairs
+     */
+    long pairProducts( int exponent ) {
+        return exponent < pairProducts.length ? pairProducts[ exponent ] : 0;
+    }
+
+    /**
+     * @return the exponents of the sum of the products of the pairs are less than this
+     */
+    int pairProductExponents() {
+        return pairProducts.length;
+    }
+
+    /**
+     * Adds the counts of other to this histogram.
+     */
+    void merge( SampleHistogram other ) {
+        other.forEach( this::add );
+        for( int e = 0; e < other.pairProducts.length; e++ ) {
+            if( other.pairProducts[ e ] != 0 ) {
+                addPairProduct( e, other.pairProducts[ e ] );
+            }
+        }
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * @return the number of samples of the given size
+     */
+    long count( int size ) {
+        return bySize[ size ] == null ? 0 : bySize[ size ].count();
+    }
+
+    int maxSize() {
+        return bySize.length - 1;
+    }
+
+    /**
+     * Calls consumer once for each (|S|, X, Y) triple with a non zero count.
+     */
+    void forEach( CellConsumer consumer ) {
+        for( int size = 0; size < bySize.length; size++ ) {
+            if( bySize[ size ] != null ) {
+                final int s = size;
+                bySize[ size ].forEach( ( X, Y, count ) -> consumer.accept( s, X, Y, count ) );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+import org.apfloat.Apint;
+
+/**
+ * Sampling stratified by the size of S: the samples of stratum s are uniform
+ * subsets of size s of the middle rank, and the mean of their values is
+ * weighted by the exact probability C(m, s) / 2^m that a uniform S has size s,
+ * where m is the size of the middle rank. So the estimate is
+ *
+ *   multiplier * sum over s of ( C(m, s) / 2^m ) mean_s = sum over s of C(m, s) mean_s
+ *
+ * and its variance is the sum over s of C(m, s)^2 variance_s / count_s.
+ *
+ * The samples are allocated to the strata by Neyman allocation, in proportion
+ * to C(m, s) * standardDeviation_s, which minimizes that variance, with the
+ * standard deviations of a pilot run. Every stratum gets at least
+ * MIN_STRATUM_COUNT samples, so that its mean and variance are known.
+ */
+class StratifiedSampling {
+
+    static final int MIN_STRATUM_COUNT = 2;
+
+    // The precision, in digits, of the statistics of the strata.
+    private static final int PRECISION = 100;
+
+    private StratifiedSampling() {
+    }
+
+    static class Estimate {
+        Apfloat estimate;
+        // The standard deviation of the estimate * sqrt( iterations ), see DedekindResult.
+        Apfloat standardDeviation;
+        // The variance of a uniform sample / ( the variance of the estimate * iterations ).
+        double varianceReduction;
+    }
+
+    /**
+     * Refills sample in place with a uniform random subset of size of the rankSize
+     * n-tuples of the middle rank, by Floyd's algorithm, which costs one call to the
+     * generator per n-tuple of the subset, or of its complement when it is smaller.
+     */
+    static void randomSample( RandomGenerator random, int rankSize, int size, long[] sample ) {
+        final boolean complement = 2 * size > rankSize;
+        final int drawn = complement ? rankSize - size : size;
+        Arrays.fill( sample, 0 );
+        for( int j = rankSize - drawn; j < rankSize; j++ ) {
+            int t = random.nextInt( j + 1 );
+            if( ( sample[ t >>> 6 ] & ( 1L << t ) ) != 0 ) {
+                t = j;
+            }
+            sample[ t >>> 6 ] |= 1L << t;
+        }
+        if( complement ) {
+            for( int w = 0; w < sample.length; w++ ) {
+                sample[ w ] = ~sample[ w ];
+            }
+            if( ( rankSize & 63 ) != 0 ) {
+                sample[ sample.length - 1 ] &= ( 1L << rankSize ) - 1;
+            }
+        }
+    }
+
+    /**
+     * Adds counts[ s ] samples of each stratum s to histogram.
+     */
+    static void sample( RankAdjacency adjacency, RandomGenerator random, long[] counts, SampleHistogram histogram ) {
+        final int rankSize = adjacency.middleRank.length;
+        final long[] sample = new long[ adjacency.sampleWords() ];
+        for( int s = 0; s < counts.length; s++ ) {
+            for( long i = 0; i < counts[ s ]; i++ ) {
+                randomSample( random, rankSize, s, sample );
+                histogram.add( s, DedekindMonteCarlo.calculateX( adjacency, sample ), DedekindMonteCarlo.calculateY( adjacency, sample ) );
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples of each stratum, about iterations in total, in proportion to
+     * C(m, s) * the standard deviation of stratum s in the pilot histogram, and at least MIN_STRATUM_COUNT
+     */
+    static long[] neymanAllocation( int n, SampleHistogram pilot, long iterations ) {
+        final int rankSize = pilot.maxSize();
+        final Apfloat[][] moments = moments( n, pilot );
+        final Apfloat[] weights = new Apfloat[ rankSize + 1 ];
+        Apfloat total = Apfloat.ZERO;
+        for( int s = 0; s <= rankSize; s++ ) {
+            weights[ s ] = moments[ s ] == null
+                ? Apfloat.ZERO
+                : Combinatorics.binomialApint( rankSize, s ).multiply( ApfloatMath.sqrt( moments[ s ][ 1 ] ) );
+            total = total.add( weights[ s ] );
+        }
+        final long[] counts = new long[ rankSize + 1 ];
+        final long allocated = Math.max( 0, iterations - (long) MIN_STRATUM_COUNT * ( rankSize + 1 ) );
+        for( int s = 0; s <= rankSize; s++ ) {
+            final double share = total.signum() == 0 ? 1.0 / ( rankSize + 1 ) : weights[ s ].divide( total ).doubleValue();
+            counts[ s ] = MIN_STRATUM_COUNT + (long) ( share * allocated );
+        }
+        return counts;
+    }
+
+    /**
+     * @return the stratified estimate of the samples of histogram, which has at least 2 samples per stratum
+     */
+    static Estimate estimate( int n, Apfloat multiplier, SampleHistogram histogram ) {
+        final int rankSize = histogram.maxSize();
+        // The exact probability that a uniform sample has size s is C(m, s) / multiplier.
+        Apfloat mean = Apfloat.ZERO;
+        Apfloat variance = Apfloat.ZERO;
+        final Apfloat[][] moments = moments( n, histogram );
+        for( int s = 0; s <= rankSize; s++ ) {
+            if( moments[ s ] == null ) {
+                throw new IllegalArgumentException( "Stratum " + s + " has less than 2 samples" );
+            }
+            final Apint weight = Combinatorics.binomialApint( rankSize, s );
+            mean = mean.add( moments[ s ][ 0 ].multiply( weight ) );
+            variance = variance.add( moments[ s ][ 1 ].multiply( weight ).multiply( weight )
+                .divide( new Apfloat( histogram.count( s ), PRECISION ) ) );
+        }
+        // The variance of one uniform sample: the mean variance of the strata plus the variance of their means.
+        Apfloat uniformVariance = Apfloat.ZERO;
+        final Apfloat uniformMean = mean.divide( multiplier );
+        for( int s = 0; s <= rankSize; s++ ) {
+            final Apfloat deviation = moments[ s ][ 0 ].subtract( uniformMean );
+            uniformVariance = uniformVariance.add( moments[ s ][ 1 ].add( deviation.multiply( deviation ) )
+                .multiply( Combinatorics.binomialApint( rankSize, s ) ) );
+        }
+        uniformVariance = uniformVariance.multiply( multiplier );
+
+        final Estimate estimate = new Estimate();
+        final Apfloat iterations = new Apfloat( histogram.count(), PRECISION );
+        estimate.estimate = mean;
+        estimate.standardDeviation = variance.signum() == 0
+            ? new Apfloat( 0.0 )
+            : ApfloatMath.sqrt( variance.multiply( iterations ) );
+        estimate.varianceReduction = uniformVariance.divide( variance.multiply( iterations ) ).doubleValue();
+        return estimate;
+    }
+
+    /**
+     * @return for each size s, the mean and the variance of the values of the samples of size s,
+     * null if there are less than 2
+     */
+    private static Apfloat[][] moments( int n, SampleHistogram histogram ) {
+        final int rankSize = histogram.maxSize();
+        // The exact sums of the values and of their squares.
+        final Apint[] sums = new Apint[ rankSize + 1 ];
+        final Apint[] sumsOfSquares = new Apint[ rankSize + 1 ];
+        Arrays.fill( sums, Apint.ZERO );
+        Arrays.fill( sumsOfSquares, Apint.ZERO );
+        histogram.forEach( ( size, X, Y, cellCount ) -> {
+            final Apint value = DedekindMonteCarlo.sampleValue( n, X, Y );
+            sums[ size ] = sums[ size ].add( value.multiply( new Apint( cellCount ) ) );
+            sumsOfSquares[ size ] = sumsOfSquares[ size ].add( value.multiply( value ).multiply( new Apint( cellCount ) ) );
+        } );
+        final Apfloat[][] moments = new Apfloat[ rankSize + 1 ][];
+        for( int s = 0; s <= rankSize; s++ ) {
+            final long count = histogram.count( s );
+            if( count >= 2 ) {
+                final Apfloat mean = new Apfloat( sums[ s ].toString(), PRECISION ).divide( new Apfloat( count, PRECISION ) );
+                // ( count * sum of squares - sum^2 ) / ( count * ( count - 1 ) )
+                final Apint numerator = new Apint( count ).multiply( sumsOfSquares[ s ] ).subtract( sums[ s ].multiply( sums[ s ] ) );
+                final Apfloat variance = new Apfloat( numerator.toString(), PRECISION )
+                    .divide( new Apfloat( count, PRECISION ).multiply( new Apfloat( count - 1, PRECISION ) ) );
+                moments[ s ] = new Apfloat[] { mean, variance };
+            }
+        }
+        return moments;
+    }
+
+}
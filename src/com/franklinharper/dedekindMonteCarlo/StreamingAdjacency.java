@@ -0,0 +1,152 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+/**
+ * X and Y of a sample without the tables of RankAdjacency, for the large n
+ * whose ranks do not fit in the heap, or in an int[]: the n-tuples of the ranks
+ * k + 1 and k - 1 are enumerated as longs in increasing order, and the indexes
+ * in the middle rank of their neighbours are computed from their bits.
+ *
+ * For an n-tuple with the bits p_1 < p_2 < ... < p_r, the colex rank of the
+ * predecessor without p_j is
+ *
+ *   sum over i < j of ( p_i choose i ) + sum over i > j of ( p_i choose i - 1 )
+ *
+ * and the colex rank of the successor with an extra bit q, between p_( j - 1 )
+ * and p_j, is
+ *
+ *   sum over i < j of ( p_i choose i ) + ( q choose j ) + sum over i >= j of ( p_i choose i + 1 )
+ *
+ * so all the neighbours of an n-tuple take O( n ) operations, with running sums.
+ * The n-tuples are visited in colex order, so the sample is read in increasing
+ * order of the words of the highest predecessors, mostly sequentially.
+ *
+ * The enumeration can be split into index ranges, which are counted concurrently
+ * on the same sample, see Combinatorics.colexUnrank.
+ */
+class StreamingAdjacency {
+
+    // n-tuples are the bits of a long.
+    static final int MAX_N = 63;
+
+    final int n;
+    final int k;
+    final long middleRankSize;
+    final long aboveMiddleSize;
+    final long belowMiddleSize;
+    // binomials[ p ][ i ] = p choose i, for i <= k + 1
+    private final long[][] binomials;
+
+    StreamingAdjacency( int n, int k ) {
+        if( n < 1 || n > MAX_N || k < 1 || k >= n ) {
+            throw new IllegalArgumentException( "Invalid n = " + n + ", k = " + k + ": 1 <= k < n <= " + MAX_N );
+        }
+        this.n = n;
+        this.k = k;
+        middleRankSize = Combinatorics.binomial( n, k );
+        aboveMiddleSize = Combinatorics.binomial( n, k + 1 );
+        belowMiddleSize = Combinatorics.binomial( n, k - 1 );
+        binomials = new long[ n ][ k + 2 ];
+        for( int p = 0; p < n; p++ ) {
+            for( int i = 0; i <= k + 1; i++ ) {
+                binomials[ p ][ i ] = Combinatorics.binomial( p, i );
+            }
+        }
+    }
+
+    /**
+     * @param sample a bitset over the indexes of the middle rank
+     * @return the number of n-tuples of rank k + 1 of index from ... to - 1 all of whose predecessors are in the sample
+     */
+    long calculateX( OffHeapBitset sample, long from, long to ) {
+        if( from >= to ) {
+            return 0;
+        }
+        final int[] bits = new int[ k + 1 ];
+        long X = 0;
+        long tuple = Combinatorics.colexUnrank( from, n, k + 1 );
+        for( long index = from; index < to; index++ ) {
+            positions( tuple, bits );
+            // The sum of ( p_i choose i - 1 ) over i > j, for j = 0.
+            long above = 0;
+            for( int i = 1; i <= k + 1; i++ ) {
+                above += binomials[ bits[ i - 1 ] ][ i - 1 ];
+            }
+            long below = 0;
+            int j = 1;
+            for( ; j <= k + 1; j++ ) {
+                above -= binomials[ bits[ j - 1 ] ][ j - 1 ];
+                if( !sample.get( below + above ) ) {
+                    break;
+                }
+                below += binomials[ bits[ j - 1 ] ][ j ];
+            }
+            if( j > k + 1 ) {
+                X++;
+            }
+            if( index + 1 < to ) {
+                tuple = Combinatorics.nextOfSameRank( tuple );
+            }
+        }
+        return X;
+    }
+
+    /**
+     * @param sample a bitset over the indexes of the middle rank
+     * @return the number of n-tuples of rank k - 1 of index from ... to - 1 none of whose successors are in the sample
+     */
+    long calculateY( OffHeapBitset sample, long from, long to ) {
+        if( from >= to ) {
+            return 0;
+        }
+        final int[] bits = new int[ k - 1 ];
+        long Y = 0;
+        long tuple = Combinatorics.colexUnrank( from, n, k - 1 );
+        for( long index = from; index < to; index++ ) {
+            positions( tuple, bits );
+            // The sum of ( p_i choose i + 1 ) over the bits above q, for q = 0.
+            long above = 0;
+            for( int i = 1; i <= k - 1; i++ ) {
+                above += binomials[ bits[ i - 1 ] ][ i + 1 ];
+            }
+            long below = 0;
+            // The index of the next bit of the n-tuple, p_j.
+            int j = 1;
+            boolean none = true;
+            for( int q = 0; q < n && none; q++ ) {
+                if( j <= k - 1 && bits[ j - 1 ] == q ) {
+                    above -= binomials[ q ][ j + 1 ];
+                    below += binomials[ q ][ j ];
+                    j++;
+                } else {
+                    none = !sample.get( below + binomials[ q ][ j ] + above );
+                }
+            }
+            if( none ) {
+                Y++;
+            }
+            if( index + 1 < to ) {
+                tuple = Combinatorics.nextOfSameRank( tuple );
+            }
+        }
+        return Y;
+    }
+
+    long calculateX( OffHeapBitset sample ) {
+        return calculateX( sample, 0, aboveMiddleSize );
+    }
+
+    long calculateY( OffHeapBitset sample ) {
+        return calculateY( sample, 0, belowMiddleSize );
+    }
+
+    /**
+     * Fills bits with the positions of the set bits of tuple, in increasing order.
+     */
+    private static void positions( long tuple, int[] bits ) {
+        for( int i = 0; tuple != 0; i++ ) {
+            bits[ i ] = Long.numberOfTrailingZeros( tuple );
+            tuple &= tuple - 1;
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apfloat.Apfloat;
+
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.DedekindResult;
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.EstimationOptions;
+
+/**
+ * Runs many estimations, the jobs, concurrently on one work-stealing pool.
+ *
+ * The jobs are submitted largest n first, and the workers of each job are
+ * tasks of the same pool, so the threads which are done with the small jobs
+ * steal the workers of the large ones instead of waiting for them. The jobs
+ * with the same n share their RankAdjacency, which is cached, and korshunov( n ),
+ * which is computed once per sweep.
+ *
+ * A job file has one job per line, as key=value pairs separated by spaces, e.g.
+ *
+ *   # n and either iterations or a precision target and/or a time budget in milliseconds
+ *   n=8 iterations=10000000 seed=1
+ *   n=9 rse=0.01 budget=600000
+ *
+ * The keys are n, iterations, rse (the target relative standard error), budget,
+ * seed and workers (the number of workers of the job, by default the parallelism
+ * of the pool). Blank lines and lines starting with # are ignored.
+ */
+class Sweep {
+
+    private Sweep() {
+    }
+
+    /**
+     * @throws UncheckedIOException if the file cannot be read
+     * @throws IllegalArgumentException if a line is not a valid job
+     */
+    static List< EstimationOptions > readJobs( Path file ) {
+        try {
+            return parseJobs( Files.readAllLines( file ) );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( "Cannot read the jobs of " + file, e );
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line is not a valid job
+     */
+    static List< EstimationOptions > parseJobs( List< String > lines ) {
+        List< EstimationOptions > jobs = new ArrayList< EstimationOptions >();
+        for( String line : lines ) {
+            line = line.trim();
+            if( line.isEmpty() || line.startsWith( "#" ) ) {
+                continue;
+            }
+            jobs.add( parseJob( line ) );
+        }
+        return jobs;
+    }
+
+    private static EstimationOptions parseJob( String line ) {
+        EstimationOptions job = new EstimationOptions();
+        job.n = -1;
+        job.nWorkers = 0;
+        try {
+            for( String pair : line.split( "\\s+" ) ) {
+                int equals = pair.indexOf( '=' );
+                if( equals < 0 ) {
+                    throw new IllegalArgumentException( "Expected key=value: " + pair );
+                }
+                String value = pair.substring( equals + 1 );
+                switch( pair.substring( 0, equals ) ) {
+                    case "n":
+                        job.n = Integer.parseInt( value );
+                        break;
+                    case "iterations":
+                        job.nIterations = Long.parseLong( value );
+                        break;
+                    case "rse":
+                        job.targetRelativeStandardError = Double.parseDouble( value );
+                        break;
+                    case "budget":
+                        job.timeBudgetMillis = Long.parseLong( value );
+                        break;
+                    case "seed":
+                        job.seed = Long.parseLong( value );
+                        break;
+                    case "workers":
+                        job.nWorkers = Integer.parseInt( value );
+                        break;
+                    default:
+                        throw new IllegalArgumentException( "Unknown key " + pair.substring( 0, equals ) );
+                }
+            }
+        } catch( NumberFormatException e ) {
+            throw new IllegalArgumentException( "Invalid job: " + line, e );
+        } catch( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Invalid job: " + line + ": " + e.getMessage(), e );
+        }
+        if( job.n < 0 ) {
+            throw new IllegalArgumentException( "Invalid job: " + line + ": n is missing" );
+        }
+        if( job.nIterations <= 0 ) {
+            if( !( job.targetRelativeStandardError > 0 ) && job.timeBudgetMillis <= 0 ) {
+                throw new IllegalArgumentException( "Invalid job: " + line + ": either iterations, rse or budget is required" );
+            }
+            // As dedekindEstimation( n, targetRelativeStandardError, timeBudgetMillis ).
+            job.nIterations = Long.MAX_VALUE;
+            job.batchIterations = DedekindMonteCarlo.DEFAULT_BATCH_ITERATIONS;
+        }
+        return job;
+    }
+
+    /**
+     * Runs the jobs on a pool of parallelism threads. Their console output is
+     * turned off, see writeTable, and their workers run on the pool. Their
+     * result sinks, if any, receive their records from the pool threads.
+     *
+     * @return the results, in the order of the jobs
+     */
+    static List< DedekindResult > run( List< EstimationOptions > jobs, int parallelism ) {
+        final ForkJoinPool pool = new ForkJoinPool( parallelism );
+        final ConcurrentHashMap< Integer, Apfloat > korshunov = new ConcurrentHashMap< Integer, Apfloat >();
+        final Integer[] largestFirst = new Integer[ jobs.size() ];
+        for( int i = 0; i < largestFirst.length; i++ ) {
+            largestFirst[ i ] = i;
+        }
+        Arrays.sort( largestFirst, Comparator.comparingInt( ( Integer i ) -> jobs.get( i ).n ).reversed() );
+        final List< Future< DedekindResult > > results = new ArrayList< Future< DedekindResult > >( jobs.size() );
+        for( int i = 0; i < jobs.size(); i++ ) {
+            results.add( null );
+        }
+        try {
+            for( int i : largestFirst ) {
+                final EstimationOptions job = jobs.get( i );
+                job.executor = pool;
+                job.console = false;
+                if( job.nWorkers <= 0 ) {
+                    job.nWorkers = parallelism;
+                }
+                results.set( i, pool.submit( () -> {
+                    job.korshunov = korshunov.computeIfAbsent( job.n, DedekindMonteCarlo::korshunov );
+                    return DedekindMonteCarlo.dedekindEstimation( job );
+                } ) );
+            }
+            final List< DedekindResult > done = new ArrayList< DedekindResult >( jobs.size() );
+            for( int i = 0; i < jobs.size(); i++ ) {
+                try {
+                    done.add( results.get( i ).get() );
+                } catch( ExecutionException e ) {
+                    throw new IllegalStateException( "Job " + i + " (n = " + jobs.get( i ).n + ") failed", e.getCause() );
+                }
+            }
+            return done;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while running the jobs", e );
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the results as one table, and sends them to resultSink if it is not null.
+     */
+    static void writeTable( List< DedekindResult > results, ResultSink resultSink ) {
+        System.out.println( DedekindMonteCarlo.columnHeaders() );
+        for( DedekindResult result : results ) {
+            System.out.println( result );
+            if( resultSink != null ) {
+                resultSink.accept( ResultSink.RESULT, result );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Console tracing with a level which can be changed at runtime, with the
+ * system property dedekind.trace (OFF, INFO, DEBUG or TRACE, in any case, INFO
+ * by default) or setLevel. An invalid property is reported on System.err and
+ * its default is used, so that it does not prevent the class from loading.
+ *
+ * The messages are Suppliers, which are only called when their level is
+ * enabled, so a disabled message costs a volatile read and no string building.
+ * Loops read the level once, before the loop, see isEnabled.
+ *
+ * TRACE is for per-iteration messages, which are sampled: only the iterations
+ * which are multiples of the system property dedekind.traceEvery (1 by default)
+ * are traced, see sampled.
+ */
+final class Trace {
+
+    enum Level {
+        OFF,
+        // The result lines and their headers.
+        INFO,
+        // The parameters and the intermediate results of a run.
+        DEBUG,
+        // The samples.
+        TRACE,
+    }
+
+    private static volatile Level level = parseLevel( System.getProperty( "dedekind.trace" ) );
+    private static volatile long every = parseEvery( System.getProperty( "dedekind.traceEvery" ) );
+
+    private Trace() {
+    }
+
+    /**
+     * @return the level named value, ignoring case, INFO if value is null or not a level
+     */
+    static Level parseLevel( String value ) {
+        if( value == null ) {
+            return Level.INFO;
+        }
+        for( Level candidate : Level.values() ) {
+            if( candidate.name().equalsIgnoreCase( value.trim() ) ) {
+                return candidate;
+            }
+        }
+        System.err.println( "Invalid dedekind.trace " + value + ", expected one of " + Arrays.toString( Level.values() ) + ", using INFO" );
+        return Level.INFO;
+    }
+
+    /**
+     * @return the interval value, 1 if value is null or not an integer >= 1
+     */
+    static long parseEvery( String value ) {
+        if( value == null ) {
+            return 1;
+        }
+        try {
+            final long every = Long.parseLong( value.trim() );
+            if( every >= 1 ) {
+                return every;
+            }
+        } catch( NumberFormatException e ) {
+            // Reported below.
+        }
+        System.err.println( "Invalid dedekind.traceEvery " + value + ", expected an integer >= 1, using 1" );
+        return 1;
+    }
+
+    static Level getLevel() {
+        return level;
+    }
+
+    static void setLevel( Level level ) {
+        Trace.level = level;
+    }
+
+    /**
+     * Traces only one iteration out of every.
+     */
+    static void setEvery( long every ) {
+        if( every < 1 ) {
+            throw new IllegalArgumentException( "The trace interval must be >= 1: " + every );
+        }
+        Trace.every = every;
+    }
+
+    static boolean isEnabled( Level messageLevel ) {
+        return messageLevel.compareTo( level ) <= 0;
+    }
+
+    /**
+     * @return true if the TRACE messages of the iteration should be written
+     */
+    static boolean sampled( long iteration ) {
+        return iteration % every == 0;
+    }
+
+    static void info( Supplier< String > message ) {
+        log( Level.INFO, message );
+    }
+
+    static void debug( Supplier< String > message ) {
+        log( Level.DEBUG, message );
+    }
+
+    static void trace( Supplier< String > message ) {
+        log( Level.TRACE, message );
+    }
+
+    private static void log( Level messageLevel, Supplier< String > message ) {
+        if( isEnabled( messageLevel ) ) {
+            System.out.println( message.get() );
+        }
+    }
+
+}
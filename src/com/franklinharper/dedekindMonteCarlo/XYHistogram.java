@@ -0,0 +1,108 @@
+package com.franklinharper.dedekindMonteCarlo;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many samples produced each (X, Y) pair.
+ *
+ * A sample value only depends on X and Y, so the histogram holds everything
+ * needed to calculate the sum and the variance of the samples exactly, whatever
+ * the size of 2^(X+Y). Small pairs are counted in a dense table, the rare large
+ * ones in an open addressing hash table keyed by the packed pair.
+ */
+class XYHistogram {
+
+    interface CellConsumer {
+        void accept( int X, int Y, long count );
+    }
+
+    private static final int DENSE_SIZE = 32;
+    private static final long EMPTY = -1;
+
+    private final long[] dense = new long[ DENSE_SIZE * DENSE_SIZE ];
+    private long[] sparseKeys = newKeys( 16 );
+    private long[] sparseCounts = new long[ 16 ];
+    private int sparseSize;
+    private long count;
+
+    void add( int X, int Y ) {
+        add( X, Y, 1 );
+    }
+
+    void add( int X, int Y, long n ) {
+        count += n;
+        if( X < DENSE_SIZE && Y < DENSE_SIZE ) {
+            dense[ X * DENSE_SIZE + Y ] += n;
+        } else {
+            addSparse( ( (long) X << 32 ) | Y, n );
+        }
+    }
+
+    /**
+     * Adds the counts of other to this histogram.
+     */
+    void merge( XYHistogram other ) {
+        other.forEach( this::add );
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Calls consumer once for each (X, Y) pair with a non zero count.
+     */
+    void forEach( CellConsumer consumer ) {
+        for( int i = 0; i < dense.length; i++ ) {
+            if( dense[ i ] != 0 ) {
+                consumer.accept( i / DENSE_SIZE, i % DENSE_SIZE, dense[ i ] );
+            }
+        }
+        for( int i = 0; i < sparseKeys.length; i++ ) {
+            if( sparseKeys[ i ] != EMPTY ) {
+                consumer.accept( (int) ( sparseKeys[ i ] >>> 32 ), (int) sparseKeys[ i ], sparseCounts[ i ] );
+            }
+        }
+    }
+
+    private void addSparse( long key, long n ) {
+        int mask = sparseKeys.length - 1;
+        int i = hash( key ) & mask;
+        while( sparseKeys[ i ] != EMPTY && sparseKeys[ i ] != key ) {
+            i = ( i + 1 ) & mask;
+        }
+        if( sparseKeys[ i ] == EMPTY ) {
+            sparseKeys[ i ] = key;
+            sparseSize++;
+        }
+        sparseCounts[ i ] += n;
+        if( 2 * sparseSize > sparseKeys.length ) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = sparseKeys;
+        long[] oldCounts = sparseCounts;
+        sparseKeys = newKeys( oldKeys.length * 2 );
+        sparseCounts = new long[ oldKeys.length * 2 ];
+        sparseSize = 0;
+        for( int i = 0; i < oldKeys.length; i++ ) {
+            if( oldKeys[ i ] != EMPTY ) {
+                addSparse( oldKeys[ i ], oldCounts[ i ] );
+            }
+        }
+    }
+
+    private static long[] newKeys( int size ) {
+        long[] keys = new long[ size ];
+        Arrays.fill( keys, EMPTY );
+        return keys;
+    }
+
+    private static int hash( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ( h ^ ( h >>> 32 ) );
+    }
+
+}
@@ -3,17 +3,49 @@ package com.franklinharper.dedekindMonteCarlo;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
 import org.apfloat.Apint;
+import org.apfloat.ApintMath;
 import org.junit.Test;
 
 import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo;
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.DedekindResult;
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.EstimationOptions;
+import com.franklinharper.dedekindMonteCarlo.DedekindMonteCarlo.SamplingMode;
 
 public class DedekindMonteCarloUnitTests {
 
@@ -184,21 +216,118 @@ public class DedekindMonteCarloUnitTests {
     }
 
     @Test
-    public void testPow2Nominal() {
-        assertEquals( 1, DedekindMonteCarlo.pow2( 0 ) );
-        assertEquals( 2, DedekindMonteCarlo.pow2( 1 ) );
-        assertEquals( 4, DedekindMonteCarlo.pow2( 2 ) );
-        assertEquals( 4294967296L, DedekindMonteCarlo.pow2( 32 ) );
+    public void testToSample() {
+        {
+            int n = 4;
+            long[] sample = DedekindMonteCarlo.toSample( n, new HashSet< Integer >( Arrays.asList( 3, 9, 10 ) ) );
+            assertArrayEquals( new long[] { ( 1L << 3 ) | ( 1L << 9 ) | ( 1L << 10 ) }, sample );
+        }
+        {
+            int n = 7;
+            // 2^7 n-tuples need two 64 bit words.
+            long[] sample = DedekindMonteCarlo.toSample( n, new HashSet< Integer >( Arrays.asList( 3, 112 ) ) );
+            assertArrayEquals( new long[] { 1L << 3, 1L << ( 112 - 64 ) }, sample );
+            assertFalse( DedekindMonteCarlo.allPredecessorsAreInSample( 112 | 1, n, sample ) );
+            assertFalse( DedekindMonteCarlo.noneOfSuccessorsAreInSample( 96, n, sample ) );
+        }
     }
 
-    @Test(expected = ArrayIndexOutOfBoundsException.class)
-    public void testPow2Negative() {
-        DedekindMonteCarlo.pow2( -1 );
+    @Test
+    public void testSumSampleValues() {
+        SampleHistogram histogram = new SampleHistogram( 6 );
+        histogram.add( 3, 0, 0 );
+        histogram.add( 3, 0, 0 );
+        histogram.add( 3, 1, 2 );
+        // Beyond 2^63.
+        histogram.add( 6, 40, 30 );
+        histogram.add( 1, 1, 2 );
+        histogram.add( 0, 100, 0 );
+        assertEquals( 6, histogram.count() );
+        assertEquals( 3, histogram.count( 3 ) );
+
+        Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( 6, ImportanceSampling.ONE_HALF );
+        int n = 4;
+        // 1 + 1 + 8 + 2^70 + 8 + 2^100
+        Apint expectedSum = new Apint( 18 ).add( ApintMath.pow( new Apint( 2 ), 70 ) ).add( ApintMath.pow( new Apint( 2 ), 100 ) );
+        assertEquals( expectedSum, DedekindMonteCarlo.sumSampleValues( n, histogram, likelihoodRatios ) );
+
+        n = 5;
+        // When n is odd a sample value is 2 * 2^(X+Y) - 2^X
+        //   1 + 1 + 14 + ( 2^71 - 2^40 ) + 14 + ( 2^101 - 2^100 )
+        expectedSum = new Apint( 30 ).add( ApintMath.pow( new Apint( 2 ), 71 ) ).subtract( ApintMath.pow( new Apint( 2 ), 40 ) )
+            .add( ApintMath.pow( new Apint( 2 ), 100 ) );
+        assertEquals( expectedSum, DedekindMonteCarlo.sumSampleValues( n, histogram, likelihoodRatios ) );
+    }
+
+    @Test
+    public void testLikelihoodRatios() {
+        // p = 3/4: a sample of size s out of 2 is weighted by 1 / ( (3/2)^s * (1/2)^(2-s) )
+        Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( 2, ImportanceSampling.toNumerator( 0.75 ) );
+        Apfloat tolerance = new Apfloat( "1e-50" );
+        checkResult( new Apfloat( 4 ), tolerance, likelihoodRatios[ 0 ] );
+        checkResult( new Apfloat( 4 ).divide( new Apfloat( 3, 100 ) ), tolerance, likelihoodRatios[ 1 ] );
+        checkResult( new Apfloat( 4 ).divide( new Apfloat( 9, 100 ) ), tolerance, likelihoodRatios[ 2 ] );
     }
 
-    @Test(expected = ArrayIndexOutOfBoundsException.class)
-    public void testPow2AboveMax() {
-        DedekindMonteCarlo.pow2( 33 );
+    @Test
+    public void testImportanceRandomSample() {
+        SplittableRandom random = new SplittableRandom( 3 );
+        long[] sample = new long[ 2 ];
+        int numerator = ImportanceSampling.toNumerator( 0.3 );
+        long included = 0;
+        int samples = 10000;
+        for( int i = 0; i < samples; i++ ) {
+            ImportanceSampling.randomSample( random, 100, numerator, sample );
+            assertEquals( 0, sample[ 1 ] >>> 36 );
+            included += DedekindMonteCarlo.sampleSize( sample );
+        }
+        // 10^6 coin flips with p = 0.3, the standard deviation of the proportion is 0.00046
+        assertEquals( 0.3, (double) included / ( 100 * samples ), 0.003 );
+    }
+
+    @Test
+    public void testImportanceSampling() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 200000;
+        options.nWorkers = 2;
+        options.seed = 42;
+        options.samplingMode = SamplingMode.IMPORTANCE;
+        options.inclusionProbability = 0.6;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertEquals( 0.6, result.inclusionProbability, 0.0001 );
+        Apfloat knownValue = DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ 4 ];
+        checkResult( knownValue, knownValue.multiply( new Apfloat( 0.05 ) ), result.estimate );
+
+        options.n = 5;
+        options.pilotIterations = 20000;
+        result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertTrue( result.inclusionProbability >= 0.05 && result.inclusionProbability <= 0.95 );
+        knownValue = DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ 5 ];
+        checkResult( knownValue, knownValue.multiply( new Apfloat( 0.05 ) ), result.estimate );
+    }
+
+    @Test
+    public void testRankAdjacency() {
+        assertSame( RankAdjacency.of( 7, 3 ), RankAdjacency.of( 7, 3 ) );
+        for( int n = 2; n <= 9; n++ ) {
+            int k = n / 2;
+            RankAdjacency adjacency = RankAdjacency.of( n, k );
+            Random random = new Random( n );
+            for( int i = 0; i < 100; i++ ) {
+                // Compare against the n-tuple indexed bitset of the same random sample.
+                long[] sample = new long[ adjacency.sampleWords() ];
+                Set< Integer > sampleSet = new HashSet< Integer >();
+                for( int j = 0; j < adjacency.middleRank.length; j++ ) {
+                    if( random.nextInt( 4 ) != 0 ) {
+                        sample[ j >>> 6 ] |= 1L << j;
+                        sampleSet.add( adjacency.middleRank[ j ] );
+                    }
+                }
+                assertEquals( DedekindMonteCarlo.calculateX( n, adjacency.aboveMiddle, sampleSet ), DedekindMonteCarlo.calculateX( adjacency, sample ) );
+                assertEquals( DedekindMonteCarlo.calculateY( n, adjacency.belowMiddle, sampleSet ), DedekindMonteCarlo.calculateY( adjacency, sample ) );
+            }
+        }
     }
 
     @Test
@@ -208,46 +337,1101 @@ public class DedekindMonteCarloUnitTests {
         assertEquals( 6435, DedekindMonteCarlo.binomial( 15, 8 ) );
     }
 
+    @Test
+    public void testLargeBinomial() {
+        assertEquals( 7219428434016265740L, Combinatorics.binomial( 66, 33 ) );
+        assertEquals( 1L, Combinatorics.binomial( 100, 100 ) );
+        assertEquals( 4950L, Combinatorics.binomial( 100, 98 ) );
+        assertEquals( 0L, Combinatorics.binomial( 4, 5 ) );
+        assertEquals( 0L, Combinatorics.binomial( 4, -1 ) );
+        assertEquals( new Apint( "100891344545564193334812497256" ), Combinatorics.binomialApint( 100, 50 ) );
+        assertEquals( new Apint( 155117520 ), Combinatorics.binomialApint( 30, 15 ) );
+    }
+
+    @Test( expected = ArithmeticException.class )
+    public void testBinomialOverflow() {
+        Combinatorics.binomial( 100, 50 );
+    }
+
+    @Test
+    public void testColexRankAndUnrank() {
+        for( int n = 1; n <= 12; n++ ) {
+            for( int k = 0; k <= n; k++ ) {
+                int[] nTuples = DedekindMonteCarlo.generateNTuplesOfRank_K( n, k );
+                assertEquals( Combinatorics.binomial( n, k ), nTuples.length );
+                PrimitiveIterator.OfLong iterator = Combinatorics.nTuplesOfRank( n, k );
+                for( int i = 0; i < nTuples.length; i++ ) {
+                    assertEquals( k, Integer.bitCount( nTuples[ i ] ) );
+                    assertEquals( nTuples[ i ], iterator.nextLong() );
+                    assertEquals( i, Combinatorics.colexRank( nTuples[ i ] ) );
+                    assertEquals( nTuples[ i ], Combinatorics.colexUnrank( i, n, k ) );
+                }
+                assertFalse( iterator.hasNext() );
+            }
+        }
+        // The last 60-tuple of rank 30
+        long last = ( ( 1L << 30 ) - 1 ) << 30;
+        assertEquals( Combinatorics.binomial( 60, 30 ) - 1, Combinatorics.colexRank( last ) );
+        assertEquals( last, Combinatorics.colexUnrank( Combinatorics.binomial( 60, 30 ) - 1, 60, 30 ) );
+    }
+
     @Test
     public void testStandardDeviation() {
         {
             long[] samples = { 2, 4, 4, 4, 5, 5, 7, 9 };
             Apint multiplier = new Apint( 1 );
-            Apfloat estimate = new Apfloat( 5 );
             Apfloat expectedResult = new Apfloat( 2.1380899352994 );
             Apfloat tolerance = expectedResult.multiply( new Apfloat( 0.00000000001 ) );
-            Apfloat result = DedekindMonteCarlo.standardDeviation( samples, multiplier , estimate, samples.length );
-            checkResult( expectedResult, tolerance, result );
+            checkResult( expectedResult, tolerance, standardDeviation( samples, multiplier ) );
         }
         {
             long[] samples = { 1, 2 };
             Apint multiplier = new Apint( 512 );
-            Apfloat estimate = new Apfloat( 512 );
-            Apfloat expectedResult = new Apfloat( 512 );
+            // 512 / sqrt( 2 )
+            Apfloat expectedResult = new Apfloat( 362.03867196751 );
             Apfloat tolerance = expectedResult.multiply( new Apfloat( 0.0001 ) );
-            Apfloat result = DedekindMonteCarlo.standardDeviation( samples, multiplier , estimate, samples.length );
-            checkResult( expectedResult, tolerance, result );
+            checkResult( expectedResult, tolerance, standardDeviation( samples, multiplier ) );
         }
         {
-            long[] samples = { 30, 31, 29};
+            long[] samples = { 30, 31, 29 };
             Apint multiplier = new Apint( 1000 );
-            Apfloat estimate =  new Apfloat( 30000 );
             Apfloat expectedResult = new Apfloat( 1000 );
             Apfloat tolerance = expectedResult.multiply( new Apfloat( 0.0001 ) );
-            Apfloat result = DedekindMonteCarlo.standardDeviation( samples, multiplier , estimate, samples.length );
-            checkResult( expectedResult, tolerance, result );
+            checkResult( expectedResult, tolerance, standardDeviation( samples, multiplier ) );
         }
-        {
-            // Only the first 3 element of the samples array contains a valid sample.
-            long[] samples = { 30, 31, 29, -1, -1, -1 };
-            int sampleCount = 3;
-            Apint multiplier = new Apint( 1000 );
-            Apfloat estimate = new Apfloat( 30000 );
-            Apfloat expectedResult = new Apfloat( 1000 );
-            Apfloat tolerance = expectedResult.multiply( new Apfloat( 0.0001 ) );
-            Apfloat result = DedekindMonteCarlo.standardDeviation( samples, multiplier, estimate, sampleCount );
-            checkResult( expectedResult, tolerance, result );
+    }
+
+    private static Apfloat standardDeviation( long[] samples, Apint multiplier ) {
+        Apint sum = Apint.ZERO;
+        Apint sumOfSquares = Apint.ZERO;
+        for( long sample : samples ) {
+            sum = sum.add( new Apint( sample ) );
+            sumOfSquares = sumOfSquares.add( new Apint( sample * sample ) );
+        }
+        return DedekindMonteCarlo.standardDeviation( multiplier, samples.length, sum, sumOfSquares );
+    }
+
+    @Test
+    public void testDedekindEstimationIsReproducible() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 10000;
+        options.nWorkers = 3;
+        options.seed = 42;
+        options.randomAlgorithm = "L64X128MixRandom";
+        DedekindResult first = DedekindMonteCarlo.dedekindEstimation( options );
+        DedekindResult second = DedekindMonteCarlo.dedekindEstimation( options );
+        assertEquals( first.estimate, second.estimate );
+        assertEquals( first.standardDeviation, second.standardDeviation );
+    }
+
+    @Test
+    public void testTargetPrecisionStopping() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 10000000;
+        options.batchIterations = 1000;
+        options.seed = 42;
+        options.targetRelativeStandardError = 0.01;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertSame( DedekindMonteCarlo.StopReason.PRECISION, result.stopReason );
+        assertTrue( result.relativeStandardError <= 0.01 );
+        assertTrue( result.nIterations < options.nIterations );
+        assertEquals( 0, result.nIterations % options.batchIterations );
+    }
+
+    @Test
+    public void testTimeBudgetStopping() {
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( 6, 0, 1 );
+        assertSame( DedekindMonteCarlo.StopReason.TIME_BUDGET, result.stopReason );
+        assertEquals( DedekindMonteCarlo.DEFAULT_BATCH_ITERATIONS, result.nIterations );
+    }
+
+    @Test
+    public void testIterationsStopping() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 1234;
+        options.targetRelativeStandardError = 1e-9;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertSame( DedekindMonteCarlo.StopReason.ITERATIONS, result.stopReason );
+        assertEquals( 1234, result.nIterations );
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws IOException {
+        Path directory = Files.createTempDirectory( "dedekind" );
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 20000;
+        options.batchIterations = 1000;
+        options.nWorkers = 2;
+        options.seed = 42;
+        options.checkpointFile = directory.resolve( "uninterrupted" );
+        options.checkpointIntervalMillis = 0;
+        DedekindResult uninterrupted = DedekindMonteCarlo.dedekindEstimation( options );
+
+        options.checkpointFile = directory.resolve( "extended" );
+        options.nIterations = 10000;
+        DedekindMonteCarlo.dedekindEstimation( options );
+        Checkpoint checkpoint = Checkpoint.read( options.checkpointFile );
+        assertEquals( 10000, checkpoint.histogram.count() );
+        assertEquals( 42, checkpoint.seed );
+
+        options.nIterations = 20000;
+        options.resume = true;
+        options.seed = 7;
+        DedekindResult extended = DedekindMonteCarlo.dedekindEstimation( options );
+        assertEquals( 20000, extended.nIterations );
+        assertEquals( 42, extended.seed );
+        assertEquals( uninterrupted.estimate, extended.estimate );
+        assertEquals( uninterrupted.standardDeviation, extended.standardDeviation );
+        assertFalse( Files.exists( directory.resolve( "extended.tmp" ) ) );
+    }
+
+    @Test
+    public void testCheckpointWriteFailure() throws IOException {
+        Path directory = Files.createTempDirectory( "dedekind" );
+        // A non empty directory cannot be replaced by the checkpoint.
+        Path file = Files.createDirectory( directory.resolve( "checkpoint" ) );
+        Files.createFile( file.resolve( "child" ) );
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.algorithm = "SplittableRandom";
+        checkpoint.histogram = new SampleHistogram( 6 );
+        checkpoint.histogram.add( 3, 1, 2 );
+        try {
+            checkpoint.write( file );
+            fail( "The checkpoint replaced a directory" );
+        } catch( UncheckedIOException e ) {
+            assertTrue( e.getMessage(), e.getMessage().contains( file.toString() ) );
+        }
+        assertFalse( Files.exists( directory.resolve( "checkpoint.tmp" ) ) );
+    }
+
+    @Test
+    public void testSingleIteration() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 1;
+        options.seed = 42;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertEquals( 1, result.nIterations );
+        assertTrue( result.estimate.signum() > 0 );
+        assertNull( result.standardDeviation );
+        assertEquals( Double.POSITIVE_INFINITY, result.relativeStandardError, 0 );
+        assertTrue( result.toString(), result.toString().contains( "\tN/A\t" ) );
+
+        options.samplingMode = SamplingMode.STREAMING;
+        result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertTrue( result.toString(), result.toString().contains( "\tN/A\t" ) );
+        assertTrue( new DedekindResult().toString().startsWith( "0\t" ) );
+    }
+
+    @Test
+    public void testCheckpointIntervalShorterThanBatch() throws IOException {
+        Path file = Files.createTempFile( "dedekind", ".jfr" );
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 200000;
+        options.checkpointFile = Files.createTempDirectory( "dedekind" ).resolve( "checkpoint" );
+        options.checkpointIntervalMillis = 1;
+        try( Recording recording = new Recording() ) {
+            recording.enable( "com.franklinharper.dedekind.Checkpoint" );
+            recording.start();
+            DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+            recording.stop();
+            recording.dump( file );
+            assertEquals( 200000, result.nIterations );
         }
+        // A default batch is a tenth of the iterations, and takes longer than the interval.
+        assertTrue( RecordingFile.readAllEvents( file ).size() > 10 );
+        assertEquals( 200000, Checkpoint.read( options.checkpointFile ).histogram.count() );
+    }
+
+    @Test
+    public void testShardStreamsAreDistinct() {
+        for( String algorithm : new String[] { "SplittableRandom", "L64X128MixRandom", "Xoshiro256PlusPlus", "Random" } ) {
+            Set< Long > firstValues = new HashSet< Long >();
+            firstValues.add( new RandomStreams( algorithm, 7 ).next().nextLong() );
+            for( int shard = 0; shard < 3; shard++ ) {
+                RandomStreams streams = new RandomStreams( algorithm, 7, shard );
+                firstValues.add( streams.next().nextLong() );
+                firstValues.add( streams.next().nextLong() );
+                assertEquals( algorithm, firstValues.size(), 3 + 2 * shard );
+                assertEquals( algorithm, new RandomStreams( algorithm, 7, shard ).next().nextLong(),
+                    new RandomStreams( algorithm, 7, shard ).next().nextLong() );
+            }
+        }
+    }
+
+    @Test
+    public void testMergeShards() throws IOException {
+        Path directory = Files.createTempDirectory( "dedekind" );
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 5000;
+        options.seed = 42;
+        Path[] shardFiles = new Path[ 3 ];
+        long[] counts = new long[ 3 ];
+        for( int shard = 0; shard < 3; shard++ ) {
+            options.shard = shard;
+            options.checkpointFile = directory.resolve( "shard" + shard );
+            DedekindMonteCarlo.dedekindEstimation( options );
+            shardFiles[ shard ] = options.checkpointFile;
+            counts[ shard ] = Checkpoint.read( shardFiles[ shard ] ).histogram.count( 5 );
+        }
+        assertFalse( counts[ 0 ] == counts[ 1 ] && counts[ 1 ] == counts[ 2 ] );
+
+        DedekindResult merged = DedekindMonteCarlo.merge( shardFiles );
+        assertEquals( 15000, merged.nIterations );
+        assertEquals( counts[ 0 ] + counts[ 1 ] + counts[ 2 ],
+            Checkpoint.merge( Checkpoint.read( shardFiles[ 0 ] ), Checkpoint.read( shardFiles[ 1 ] ), Checkpoint.read( shardFiles[ 2 ] ) )
+                .histogram.count( 5 ) );
+        checkResult( DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ 5 ], DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ 5 ].multiply( new Apfloat( 0.2 ) ),
+            merged.estimate );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testMergeSameShardTwice() throws IOException {
+        Path shardFile = Files.createTempDirectory( "dedekind" ).resolve( "shard" );
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 100;
+        options.shard = 0;
+        options.checkpointFile = shardFile;
+        DedekindMonteCarlo.dedekindEstimation( options );
+        DedekindMonteCarlo.merge( shardFile, shardFile );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testMergeUnshardedRun() throws IOException {
+        Path directory = Files.createTempDirectory( "dedekind" );
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 100;
+        options.seed = 42;
+        options.checkpointFile = directory.resolve( "unsharded" );
+        DedekindMonteCarlo.dedekindEstimation( options );
+        options.shard = 0;
+        options.checkpointFile = directory.resolve( "shard0" );
+        DedekindMonteCarlo.dedekindEstimation( options );
+        DedekindMonteCarlo.merge( directory.resolve( "unsharded" ), directory.resolve( "shard0" ) );
+    }
+
+    @Test
+    public void testShardsInSeparateProcesses() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory( "dedekind" );
+        String java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+        Process[] processes = new Process[ 2 ];
+        Path[] shardFiles = new Path[ 2 ];
+        for( int shard = 0; shard < 2; shard++ ) {
+            shardFiles[ shard ] = directory.resolve( "shard" + shard );
+            processes[ shard ] = new ProcessBuilder( java, "-cp", System.getProperty( "java.class.path" ),
+                DedekindMonteCarlo.class.getName(), "shard", "42", Integer.toString( shard ), "4", "10000", shardFiles[ shard ].toString() )
+                .redirectOutput( ProcessBuilder.Redirect.DISCARD )
+                .start();
+        }
+        for( Process process : processes ) {
+            assertEquals( 0, process.waitFor() );
+        }
+        DedekindResult merged = DedekindMonteCarlo.merge( shardFiles );
+        assertEquals( 20000, merged.nIterations );
+        checkResult( DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ 4 ], DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ 4 ].multiply( new Apfloat( 0.1 ) ),
+            merged.estimate );
+    }
+
+    @Test
+    public void testBitSlicedKernel() {
+        SplittableRandom random = new SplittableRandom( 3 );
+        for( int n = 3; n <= 8; n++ ) {
+            RankAdjacency adjacency = RankAdjacency.of( n, n / 2 );
+            int rankSize = adjacency.middleRank.length;
+            long[][] samples = new long[ BitSlicedKernel.LANES ][ adjacency.sampleWords() ];
+            long[] lanes = new long[ rankSize ];
+            for( int j = 0; j < BitSlicedKernel.LANES; j++ ) {
+                // Include the empty and the full sample, whose X or Y is maximal.
+                if( j == 1 ) {
+                    Arrays.fill( samples[ j ], -1L );
+                    if( ( rankSize & 63 ) != 0 ) {
+                        samples[ j ][ samples[ j ].length - 1 ] = ( 1L << rankSize ) - 1;
+                    }
+                } else if( j > 1 ) {
+                    DedekindMonteCarlo.randomSample( random, rankSize, samples[ j ] );
+                }
+                for( int i = 0; i < rankSize; i++ ) {
+                    if( ( samples[ j ][ i >>> 6 ] & ( 1L << i ) ) != 0 ) {
+                        lanes[ i ] |= 1L << j;
+                    }
+                }
+            }
+            BitSlicedKernel kernel = new BitSlicedKernel( adjacency );
+            kernel.setSamples( lanes );
+            kernel.count();
+            SampleHistogram histogram = new SampleHistogram( rankSize );
+            kernel.addTo( histogram, BitSlicedKernel.LANES );
+            SampleHistogram expected = new SampleHistogram( rankSize );
+            for( int j = 0; j < BitSlicedKernel.LANES; j++ ) {
+                int X = DedekindMonteCarlo.calculateX( adjacency, samples[ j ] );
+                int Y = DedekindMonteCarlo.calculateY( adjacency, samples[ j ] );
+                assertEquals( "n = " + n, DedekindMonteCarlo.sampleSize( samples[ j ] ), kernel.size( j ) );
+                assertEquals( "n = " + n, X, kernel.X( j ) );
+                assertEquals( "n = " + n, Y, kernel.Y( j ) );
+                expected.add( DedekindMonteCarlo.sampleSize( samples[ j ] ), X, Y );
+            }
+            assertEquals( expected.count(), histogram.count() );
+            for( int size = 0; size <= rankSize; size++ ) {
+                assertEquals( expected.count( size ), histogram.count( size ) );
+            }
+        }
+    }
+
+    @Test
+    public void testDedekindExact() {
+        // The expectation of the estimator, it is D(n) for n <= 3 and slightly smaller beyond.
+        long[] expected = { 2, 3, 6, 20, 166, 7574, 7741776 };
+        for( int n = 0; n <= 6; n++ ) {
+            DedekindResult result = DedekindMonteCarlo.dedekindExact( n );
+            assertEquals( "n = " + n, new Apint( expected[ n ] ), result.estimate.truncate() );
+            assertEquals( "n = " + n, 1L << DedekindMonteCarlo.binomial( n, n / 2 ), result.nIterations );
+            assertTrue( "n = " + n, result.estimate.compareTo( DedekindMonteCarlo.DEDEKIND_KNOWN_VALUES[ n ] ) <= 0 );
+        }
+    }
+
+    @Test
+    public void testExactEnumerationMatchesCalculateXY() {
+        for( int n = 2; n <= 5; n++ ) {
+            RankAdjacency adjacency = RankAdjacency.of( n, n / 2 );
+            int rankSize = adjacency.middleRank.length;
+            SampleHistogram expected = new SampleHistogram( rankSize );
+            long[] sample = new long[ adjacency.sampleWords() ];
+            for( long subset = 0; subset < 1L << rankSize; subset++ ) {
+                sample[ 0 ] = subset;
+                expected.add( DedekindMonteCarlo.sampleSize( sample ),
+                    DedekindMonteCarlo.calculateX( adjacency, sample ), DedekindMonteCarlo.calculateY( adjacency, sample ) );
+            }
+            for( int nWorkers : new int[] { 1, 3 } ) {
+                SampleHistogram actual = new ExactEnumeration( adjacency ).enumerate( nWorkers );
+                List< String > expectedCells = new ArrayList< String >();
+                expected.forEach( ( size, X, Y, count ) -> expectedCells.add( size + " " + X + " " + Y + " " + count ) );
+                List< String > actualCells = new ArrayList< String >();
+                actual.forEach( ( size, X, Y, count ) -> actualCells.add( size + " " + X + " " + Y + " " + count ) );
+                Collections.sort( expectedCells );
+                Collections.sort( actualCells );
+                assertEquals( "n = " + n, expectedCells, actualCells );
+            }
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testExactEnumerationTooLarge() {
+        new ExactEnumeration( RankAdjacency.of( 7, 3 ) );
+    }
+
+    @Test
+    public void testJsonLinesResultSink() {
+        StringWriter out = new StringWriter();
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 10000;
+        options.seed = 42;
+        options.resultSink = new ResultSink.JsonLines( out );
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        String[] records = out.toString().split( "\n" );
+        assertEquals( 10, records.length );
+        for( int i = 0; i < 9; i++ ) {
+            assertTrue( records[ i ], records[ i ].startsWith( "{\"type\":\"progress\",\"n\":5,\"estimate\":" ) );
+            assertTrue( records[ i ], records[ i ].endsWith( ",\"seed\":42,\"inclusionProbability\":0.5,\"stopReason\":null,\"varianceReduction\":null,\"timeNormalizedVarianceReduction\":null}" ) );
+        }
+        assertTrue( records[ 9 ], records[ 9 ].startsWith( "{\"type\":\"result\",\"n\":5,\"estimate\":" + result.estimate.toString( true ) + "," ) );
+        assertTrue( records[ 9 ], records[ 9 ].contains( ",\"iterations\":10000," ) );
+        assertTrue( records[ 9 ], records[ 9 ].endsWith( ",\"stopReason\":\"ITERATIONS\",\"varianceReduction\":null,\"timeNormalizedVarianceReduction\":null}" ) );
+    }
+
+    @Test
+    public void testCsvResultSink() {
+        StringWriter out = new StringWriter();
+        DedekindResult result = new DedekindResult();
+        result.n = 4;
+        result.estimate = new Apfloat( "168.123456789012345", 20 );
+        result.nIterations = 1000;
+        new ResultSink.Csv( out ).accept( ResultSink.RESULT, result );
+        String[] lines = out.toString().split( "\n" );
+        assertEquals( "type,n,estimate,standardDeviation,relativeStandardError,iterations,elapsedMillis,samplesPerSecond,"
+            + "korshunovRatio,seed,inclusionProbability,stopReason,varianceReduction,timeNormalizedVarianceReduction", lines[ 0 ] );
+        assertEquals( "result,4,168.123456789012345,,,1000,0,0.0,,0,0.0,,,", lines[ 1 ] );
+    }
+
+    @Test
+    public void testResultSinkNonFiniteValues() {
+        StringWriter out = new StringWriter();
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 1;
+        options.seed = 42;
+        options.resultSink = new ResultSink.JsonLines( out );
+        DedekindMonteCarlo.dedekindEstimation( options );
+        assertFalse( out.toString(), out.toString().contains( "Infinity" ) );
+        assertFalse( out.toString(), out.toString().contains( "NaN" ) );
+
+        out = new StringWriter();
+        DedekindResult result = new DedekindResult();
+        result.n = 4;
+        result.nIterations = 1;
+        result.relativeStandardError = Double.NaN;
+        result.samplesPerSecond = Double.POSITIVE_INFINITY;
+        result.varianceReduction = Double.NEGATIVE_INFINITY;
+        new ResultSink.Csv( out ).accept( ResultSink.RESULT, result );
+        assertEquals( "result,4,,,,1,0,,,0,0.0,,,", out.toString().split( "\n" )[ 1 ] );
+    }
+
+    @Test
+    public void testPowerOfTwo() {
+        Apfloat exact = new Apfloat( ApintMath.pow( DedekindMonteCarlo.TWO, 1000 ).toString(), DedekindMonteCarlo.POWER_OF_TWO_PRECISION );
+        assertEquals( exact, DedekindMonteCarlo.powerOfTwo( 1000 ) );
+        // 2^(24 choose 12) has 814033 digits, which are never expanded.
+        assertEquals( 814033, DedekindMonteCarlo.powerOfTwo( DedekindMonteCarlo.binomial( 24, 12 ) ).scale() );
+        Apfloat korshunov = DedekindMonteCarlo.korshunov( 24 );
+        assertTrue( korshunov.precision() <= DedekindMonteCarlo.POWER_OF_TWO_PRECISION );
+        DedekindResult result = new DedekindResult();
+        result.n = 24;
+        result.estimate = korshunov;
+        result.korshunov = korshunov;
+        String record = new ResultSink.JsonLines( new StringWriter() ).format( ResultSink.fields( ResultSink.RESULT, result ) );
+        assertTrue( record, record.length() < 1000 );
+        assertTrue( record, record.contains( "\"korshunovRatio\":1.0," ) );
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile( "dedekind", ".jfr" );
+        try( Recording recording = new Recording() ) {
+            for( String event : new String[] { "SamplingBatch", "Statistics", "Korshunov", "Checkpoint" } ) {
+                recording.enable( "com.franklinharper.dedekind." + event );
+            }
+            recording.start();
+            EstimationOptions options = new EstimationOptions();
+            options.n = 4;
+            options.nIterations = 1000;
+            options.checkpointFile = Files.createTempDirectory( "dedekind" ).resolve( "checkpoint" );
+            DedekindMonteCarlo.dedekindEstimation( options );
+            recording.stop();
+            recording.dump( file );
+        }
+        Map< String, Integer > counts = new HashMap< String, Integer >();
+        for( RecordedEvent event : RecordingFile.readAllEvents( file ) ) {
+            counts.merge( event.getEventType().getName(), 1, Integer::sum );
+        }
+        assertEquals( Integer.valueOf( 10 ), counts.get( "com.franklinharper.dedekind.SamplingBatch" ) );
+        assertEquals( Integer.valueOf( 10 ), counts.get( "com.franklinharper.dedekind.Statistics" ) );
+        assertEquals( Integer.valueOf( 1 ), counts.get( "com.franklinharper.dedekind.Korshunov" ) );
+        assertEquals( Integer.valueOf( 1 ), counts.get( "com.franklinharper.dedekind.Checkpoint" ) );
+    }
+
+    @Test
+    public void testRunMetricsMBean() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName runs = new ObjectName( "com.franklinharper.dedekind:type=Run,*" );
+        final List< Object[] > snapshots = new ArrayList< Object[] >();
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 100000;
+        options.nWorkers = 2;
+        options.resultSink = new ResultSink.JsonLines( new StringWriter() ) {
+            @Override
+            void accept( String type, DedekindResult result ) {
+                try {
+                    for( ObjectName run : server.queryNames( runs, null ) ) {
+                        snapshots.add( new Object[] { result.nIterations, result.estimate.doubleValue(),
+                            server.getAttribute( run, "Iterations" ), server.getAttribute( run, "Estimate" ),
+                            server.getAttribute( run, "EtaSeconds" ) } );
+                    }
+                } catch( JMException e ) {
+                    throw new IllegalStateException( e );
+                }
+            }
+        };
+        DedekindMonteCarlo.dedekindEstimation( options );
+        // The progress records, the MBean is unregistered before the result.
+        assertEquals( 9, snapshots.size() );
+        for( Object[] snapshot : snapshots ) {
+            assertEquals( snapshot[ 0 ], snapshot[ 2 ] );
+            assertEquals( (Double) snapshot[ 1 ], (Double) snapshot[ 3 ], 1e-9 * (Double) snapshot[ 1 ] );
+            assertTrue( (Long) snapshot[ 4 ] >= 0 );
+        }
+        assertTrue( server.queryNames( runs, null ).isEmpty() );
+    }
+
+    @Test
+    public void testRunMetricsLargeN() {
+        // 2^(13 choose 6) = 2^1716 is larger than a double.
+        int n = 13;
+        int rankSize = (int) DedekindMonteCarlo.binomial( n, 6 );
+        Apfloat korshunov = DedekindMonteCarlo.korshunov( n );
+        RunMetrics metrics = new RunMetrics( n, 100, rankSize, korshunov );
+        SampleHistogram histogram = new SampleHistogram( rankSize );
+        histogram.add( 858, 3, 2, 5 );
+        histogram.add( 860, 1, 4, 5 );
+        double[] likelihoodRatios = new double[ rankSize + 1 ];
+        Arrays.fill( likelihoodRatios, 1 );
+        metrics.add( histogram, likelihoodRatios );
+
+        Apfloat[] exactLikelihoodRatios = ImportanceSampling.likelihoodRatios( rankSize, ImportanceSampling.ONE_HALF );
+        Apfloat multiplier = DedekindMonteCarlo.powerOfTwo( rankSize );
+        Apfloat estimate = DedekindMonteCarlo.estimate( n, multiplier, histogram, exactLikelihoodRatios );
+        Apfloat standardError = DedekindMonteCarlo.standardDeviation( n, multiplier, histogram, exactLikelihoodRatios )
+            .divide( ApfloatMath.sqrt( new Apfloat( 10, 20 ) ) );
+        assertEquals( Double.POSITIVE_INFINITY, metrics.getEstimate(), 0 );
+        assertEquals( ApfloatMath.log( estimate ).doubleValue() / Math.log( 2 ), metrics.getLog2Estimate(), 1e-9 );
+        assertEquals( ApfloatMath.log( standardError ).doubleValue() / Math.log( 2 ), metrics.getLog2StandardError(), 1e-9 );
+        double korshunovRatio = estimate.divide( korshunov ).doubleValue();
+        assertEquals( korshunovRatio, metrics.getKorshunovRatio(), 1e-9 * korshunovRatio );
+    }
+
+    @Test
+    public void testRunMetricsSampleValue() {
+        for( int n = 4; n <= 5; n++ ) {
+            for( int X = 0; X < 40; X += 7 ) {
+                for( int Y = 0; Y < 40; Y += 5 ) {
+                    double expected = DedekindMonteCarlo.sampleValue( n, X, Y ).doubleValue();
+                    assertEquals( expected, RunMetrics.sampleValue( n, X, Y ), 1e-12 * expected );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testControlVariateExpectations() {
+        RankAdjacency adjacency = RankAdjacency.of( 5, 2 );
+        int rankSize = adjacency.middleRank.length;
+        long[] counts = new long[ rankSize + 1 ];
+        double[][] sums = new double[ rankSize + 1 ][ 2 ];
+        new ExactEnumeration( adjacency ).enumerate( 1 ).forEach( ( size, X, Y, count ) -> {
+            counts[ size ] += count;
+            sums[ size ][ 0 ] += X * count;
+            sums[ size ][ 1 ] += Y * count;
+        } );
+        for( int size = 0; size <= rankSize; size++ ) {
+            double[] expectations = ControlVariates.expectations( adjacency, size );
+            assertEquals( sums[ size ][ 0 ] / counts[ size ], expectations[ 0 ], 1e-9 );
+            assertEquals( sums[ size ][ 1 ] / counts[ size ], expectations[ 1 ], 1e-9 );
+        }
+    }
+
+    @Test
+    public void testControlVariates() {
+        EstimationOptions options = new EstimationOptions();
+        options.n = 5;
+        options.nIterations = 20000;
+        options.seed = 1;
+        options.controlVariates = true;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        // 7574 is the expectation of the estimator for n = 5, see testDedekindExact.
+        double standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 7574, result.estimate.doubleValue(), 4 * standardError );
+        assertTrue( "variance reduction " + result.varianceReduction, result.varianceReduction > 10 );
+
+        options.samplingMode = SamplingMode.IMPORTANCE;
+        options.inclusionProbability = 0.4;
+        result = DedekindMonteCarlo.dedekindEstimation( options );
+        standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 7574, result.estimate.doubleValue(), 4 * standardError );
+        assertTrue( "variance reduction " + result.varianceReduction, result.varianceReduction > 1 );
+    }
+
+    @Test
+    public void testControlVariatesTailVariance() {
+        RankAdjacency adjacency = RankAdjacency.of( 4, 2 );
+        int rankSize = adjacency.middleRank.length;
+        // Out of 100 samples, the sizes 2, 3 and 4 are expected at least 10 times and are stratified.
+        SampleHistogram histogram = new SampleHistogram( rankSize );
+        histogram.add( 2, 0, 1, 30 );
+        histogram.add( 3, 1, 0, 30 );
+        histogram.add( 4, 2, 0, 30 );
+        histogram.add( 1, 0, 2, 10 );
+        Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( rankSize, ImportanceSampling.ONE_HALF );
+        ControlVariates.Fit fit = ControlVariates.fit( adjacency, DedekindMonteCarlo.powerOfTwo( rankSize ), histogram,
+            likelihoodRatios, 0.5 );
+        // The sizes do not vary within, so the variance is that of the tail: its contribution to a sample
+        // is 2^2 with probability 10 / 100 and 0 otherwise.
+        assertEquals( 64 * 4 * Math.sqrt( 0.1 * 0.9 ), fit.standardDeviation.doubleValue(), 1e-9 );
+    }
+
+    @Test
+    public void testPrimitivePolynomials() {
+        // The number of primitive polynomials of degree 1 ... 8 is phi( 2^d - 1 ) / d.
+        int[] expectedPerDegree = { 0, 1, 1, 2, 2, 6, 6, 18, 16 };
+        int[] perDegree = new int[ expectedPerDegree.length ];
+        for( long polynomial : QuasiRandomSampling.primitivePolynomials( 52 ) ) {
+            perDegree[ 63 - Long.numberOfLeadingZeros( polynomial ) ]++;
+        }
+        assertArrayEquals( expectedPerDegree, perDegree );
+        // x^2 + x + 1, x^3 + x + 1, x^3 + x^2 + 1
+        assertEquals( Arrays.asList( 0b11L, 0b111L, 0b1011L, 0b1101L ), QuasiRandomSampling.primitivePolynomials( 4 ) );
+    }
+
+    @Test
+    public void testQuasiRandomReplicateIsBalanced() {
+        RankAdjacency adjacency = RankAdjacency.of( 7, 3 );
+        QuasiRandomSampling sampling = new QuasiRandomSampling( adjacency, 10 );
+        // Every n-tuple is in exactly half of the samples of a replicate, whatever the shift.
+        long[] rows = QuasiRandomSampling.firstBitRows( adjacency.middleRank.length, 10 );
+        Set< Long > distinct = new HashSet< Long >();
+        for( long row : rows ) {
+            assertTrue( row != 0 );
+            distinct.add( row );
+        }
+        assertEquals( rows.length, distinct.size() );
+        SampleHistogram histogram = new SampleHistogram( adjacency.middleRank.length );
+        sampling.replicate( new SplittableRandom( 1 ), histogram );
+        assertEquals( 1024, histogram.count() );
+        long sizes = 0;
+        for( int size = 0; size <= adjacency.middleRank.length; size++ ) {
+            sizes += size * histogram.count( size );
+        }
+        assertEquals( 1024 * adjacency.middleRank.length / 2, sizes );
+    }
+
+    @Test
+    public void testQuasiRandomEstimation() {
+        EstimationOptions options = new EstimationOptions();
+        options.samplingMode = SamplingMode.QUASI_RANDOM;
+        options.seed = 1;
+        options.nWorkers = 2;
+        // 2^6 samples per replicate enumerate the 2^6 subsets of the middle rank of n = 4 exactly.
+        options.n = 4;
+        options.nIterations = 16 * 64 + 10;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertEquals( 16 * 64, result.nIterations );
+        assertEquals( 166.0, result.estimate.doubleValue(), 1e-9 );
+        assertEquals( 0.0, result.relativeStandardError, 0.0 );
+
+        // The replicates are unbiased estimates of the expectation of the estimator, 7741776 for n = 6.
+        options.n = 6;
+        options.replicates = 64;
+        options.nIterations = 64 * 1024;
+        result = DedekindMonteCarlo.dedekindEstimation( options );
+        double standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 7741776, result.estimate.doubleValue(), 4 * standardError );
+        assertEquals( result.estimate, DedekindMonteCarlo.dedekindEstimation( options ).estimate );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testQuasiRandomEstimationWithOneReplicate() {
+        EstimationOptions options = new EstimationOptions();
+        options.samplingMode = SamplingMode.QUASI_RANDOM;
+        options.n = 4;
+        options.nIterations = 1000;
+        options.replicates = 1;
+        DedekindMonteCarlo.dedekindEstimation( options );
+    }
+
+    @Test
+    public void testPushKernel() {
+        SplittableRandom random = new SplittableRandom( 1 );
+        for( int n = 2; n <= 9; n++ ) {
+            RankAdjacency adjacency = RankAdjacency.of( n, n / 2 );
+            PushKernel kernel = new PushKernel( adjacency );
+            long[] sample = new long[ adjacency.sampleWords() ];
+            for( int i = 0; i < 30; i++ ) {
+                // Mostly full or mostly empty samples too, so that X and Y are not always 0.
+                int inclusionNumerator = ImportanceSampling.toNumerator( new double[] { 0.1, 0.5, 0.9 }[ i % 3 ] );
+                ImportanceSampling.randomSample( random, adjacency.middleRank.length, inclusionNumerator, sample );
+                kernel.count( sample );
+                assertEquals( "n = " + n, DedekindMonteCarlo.calculateX( adjacency, sample ), kernel.X() );
+                assertEquals( "n = " + n, DedekindMonteCarlo.calculateY( adjacency, sample ), kernel.Y() );
+            }
+        }
+
+        // The same samples as the scalar kernel.
+        EstimationOptions options = new EstimationOptions();
+        options.n = 6;
+        options.nIterations = 10000;
+        options.nWorkers = 2;
+        options.seed = 1;
+        options.kernel = DedekindMonteCarlo.SamplingKernel.SCALAR;
+        Apfloat scalar = DedekindMonteCarlo.dedekindEstimation( options ).estimate;
+        options.kernel = DedekindMonteCarlo.SamplingKernel.PUSH;
+        assertEquals( scalar, DedekindMonteCarlo.dedekindEstimation( options ).estimate );
+    }
+
+    @Test
+    public void testAntitheticPairs() {
+        SplittableRandom random = new SplittableRandom( 1 );
+        for( int n = 2; n <= 9; n++ ) {
+            RankAdjacency adjacency = RankAdjacency.of( n, n / 2 );
+            int rankSize = adjacency.middleRank.length;
+            long[] sample = new long[ adjacency.sampleWords() ];
+            long[] complement = new long[ sample.length ];
+            SampleHistogram histogram = new SampleHistogram( rankSize );
+            Apfloat sum = Apint.ZERO;
+            Apfloat sumOfSquares = Apint.ZERO;
+            for( int i = 0; i < 50; i++ ) {
+                int inclusionNumerator = ImportanceSampling.toNumerator( new double[] { 0.1, 0.5, 0.9 }[ i % 3 ] );
+                ImportanceSampling.randomSample( random, rankSize, inclusionNumerator, sample );
+                for( int w = 0; w < sample.length; w++ ) {
+                    complement[ w ] = ~sample[ w ];
+                }
+                if( ( rankSize & 63 ) != 0 ) {
+                    complement[ sample.length - 1 ] &= ( 1L << rankSize ) - 1;
+                }
+                int X = DedekindMonteCarlo.calculateX( adjacency, sample );
+                int Y = DedekindMonteCarlo.calculateY( adjacency, sample );
+                int complementX = DedekindMonteCarlo.calculateX( adjacency, complement );
+                int complementY = DedekindMonteCarlo.calculateY( adjacency, complement );
+                assertEquals( "n = " + n, X | ( (long) complementX << 32 ), DedekindMonteCarlo.calculateXPair( adjacency, sample ) );
+                assertEquals( "n = " + n, Y | ( (long) complementY << 32 ), DedekindMonteCarlo.calculateYPair( adjacency, sample ) );
+
+                histogram.add( DedekindMonteCarlo.sampleSize( sample ), X, Y );
+                histogram.add( DedekindMonteCarlo.sampleSize( complement ), complementX, complementY );
+                DedekindMonteCarlo.addPairProduct( n, X, Y, complementX, complementY, histogram );
+                Apint pairSum = DedekindMonteCarlo.sampleValue( n, X, Y ).add( DedekindMonteCarlo.sampleValue( n, complementX, complementY ) );
+                sum = sum.add( pairSum );
+                sumOfSquares = sumOfSquares.add( pairSum.multiply( pairSum ) );
+            }
+            // The standard deviation of the sums of the pairs, computed directly, / sqrt( 2 ).
+            Apfloat multiplier = DedekindMonteCarlo.powerOfTwo( rankSize );
+            Apfloat expected = DedekindMonteCarlo.standardDeviation( multiplier, 50, sum, sumOfSquares )
+                .divide( ApfloatMath.sqrt( new Apfloat( 2, 100 ) ) );
+            Apfloat[] likelihoodRatios = ImportanceSampling.likelihoodRatios( rankSize, ImportanceSampling.ONE_HALF );
+            Apfloat actual = DedekindMonteCarlo.antitheticStandardDeviation( n, multiplier, histogram, likelihoodRatios );
+            assertEquals( "n = " + n, 1.0, actual.divide( expected ).doubleValue(), 1e-12 );
+        }
+    }
+
+    @Test
+    public void testAntitheticEstimation() {
+        EstimationOptions options = new EstimationOptions();
+        options.antithetic = true;
+        options.n = 5;
+        options.nIterations = 20001;
+        options.nWorkers = 2;
+        options.seed = 1;
+        options.console = false;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        // Whole pairs.
+        assertEquals( 0, result.nIterations % 2 );
+        assertTrue( result.nIterations >= 20001 );
+        double standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 7574, result.estimate.doubleValue(), 4 * standardError );
+        assertTrue( result.varianceReduction > 0 );
+        assertTrue( result.timeNormalizedVarianceReduction > 0 );
+    }
+
+    @Test
+    public void testAntitheticCostRatio() {
+        // The ratio is timed, only its order of magnitude is known.
+        double ratio = DedekindMonteCarlo.antitheticCostRatio( RankAdjacency.of( 6, 3 ), DedekindMonteCarlo.SamplingKernel.SCALAR, 1 );
+        assertTrue( "cost ratio " + ratio, ratio > 0.1 && ratio < 10 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testAntitheticImportanceSampling() {
+        EstimationOptions options = new EstimationOptions();
+        options.antithetic = true;
+        options.samplingMode = SamplingMode.IMPORTANCE;
+        options.n = 4;
+        options.nIterations = 1000;
+        DedekindMonteCarlo.dedekindEstimation( options );
+    }
+
+    @Test
+    public void testStratifiedRandomSample() {
+        SplittableRandom random = new SplittableRandom( 1 );
+        int rankSize = 70;
+        long[] sample = new long[ 2 ];
+        for( int size : new int[] { 0, 10, 35, 60, 70 } ) {
+            int[] inclusions = new int[ rankSize ];
+            for( int i = 0; i < 7000; i++ ) {
+                StratifiedSampling.randomSample( random, rankSize, size, sample );
+                assertEquals( size, DedekindMonteCarlo.sampleSize( sample ) );
+                for( int t = 0; t < rankSize; t++ ) {
+                    if( ( sample[ t >>> 6 ] & ( 1L << t ) ) != 0 ) {
+                        inclusions[ t ]++;
+                    }
+                }
+            }
+            // Each n-tuple is in the sample with probability size / rankSize.
+            for( int t = 0; t < rankSize; t++ ) {
+                assertEquals( "size " + size, 100.0 * size, inclusions[ t ], 5 * Math.sqrt( 100.0 * size ) + 1e-9 );
+            }
+        }
+    }
+
+    @Test
+    public void testStratifiedEstimation() {
+        EstimationOptions options = new EstimationOptions();
+        options.samplingMode = SamplingMode.STRATIFIED;
+        options.n = 4;
+        options.nIterations = 20000;
+        options.nWorkers = 2;
+        options.seed = 1;
+        options.console = false;
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        // The pilot samples, 2000 / 7 in each of the 7 strata, are not part of the estimate,
+        // and the allocation rounds down.
+        assertEquals( 20000 - 7 * 285, result.nIterations, 7 );
+        double standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 166, result.estimate.doubleValue(), 4 * standardError );
+        assertTrue( result.varianceReduction > 1 );
+
+        options.n = 6;
+        result = DedekindMonteCarlo.dedekindEstimation( options );
+        standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 7741776, result.estimate.doubleValue(), 4 * standardError );
+        assertTrue( result.varianceReduction > 1 );
+        assertEquals( result.estimate, DedekindMonteCarlo.dedekindEstimation( options ).estimate );
+    }
+
+    @Test
+    public void testNeymanAllocation() {
+        SampleHistogram pilot = new SampleHistogram( 3 );
+        // Stratum 0 is constant, stratum 3 has no pilot samples, and stratum 2, whose values are 1 and 4,
+        // has 3 times the standard deviation of stratum 1, whose values are 1 and 2, and the same weight C(3, 1).
+        pilot.add( 0, 0, 1, 2 );
+        pilot.add( 1, 0, 0 );
+        pilot.add( 1, 1, 0 );
+        pilot.add( 2, 0, 0 );
+        pilot.add( 2, 0, 2 );
+        long[] counts = StratifiedSampling.neymanAllocation( 4, pilot, 3008 );
+        assertEquals( StratifiedSampling.MIN_STRATUM_COUNT, counts[ 0 ] );
+        assertEquals( StratifiedSampling.MIN_STRATUM_COUNT, counts[ 3 ] );
+        assertEquals( 3 * ( counts[ 1 ] - 2 ), counts[ 2 ] - 2, 1 );
+        assertEquals( 3008, counts[ 0 ] + counts[ 1 ] + counts[ 2 ] + counts[ 3 ], 2 );
+    }
+
+    @Test
+    public void testOffHeapBitset() throws IOException {
+        // Chunks of 2 words, so that 300 bits span 3 chunks.
+        OffHeapBitset bitset = OffHeapBitset.allocate( 300, 1 );
+        assertEquals( 5, bitset.words() );
+        long[] bits = { 0, 63, 64, 127, 128, 255, 299 };
+        for( long bit : bits ) {
+            bitset.set( bit );
+        }
+        assertEquals( bits.length, bitset.cardinality() );
+        assertTrue( bitset.get( 299 ) );
+        assertFalse( bitset.get( 298 ) );
+
+        // The same bits as randomSample, from the same generator.
+        bitset.randomize( new SplittableRandom( 1 ) );
+        long[] sample = new long[ 5 ];
+        DedekindMonteCarlo.randomSample( new SplittableRandom( 1 ), 300, sample );
+        for( int w = 0; w < sample.length; w++ ) {
+            assertEquals( sample[ w ], bitset.word( w ) );
+        }
+        assertEquals( DedekindMonteCarlo.sampleSize( sample ), bitset.cardinality() );
+
+        Path file = Files.createTempDirectory( "dedekind" ).resolve( "sample" );
+        OffHeapBitset mapped = OffHeapBitset.map( file, 300, 1 );
+        mapped.set( 200 );
+        assertEquals( 5 * Long.BYTES, Files.size( file ) );
+        assertTrue( OffHeapBitset.map( file, 300, 1 ).get( 200 ) );
+        assertEquals( 1, OffHeapBitset.map( file, 300, 1 ).cardinality() );
+    }
+
+    @Test
+    public void testStreamingAdjacency() {
+        SplittableRandom random = new SplittableRandom( 1 );
+        for( int n = 3; n <= 10; n++ ) {
+            int k = n / 2;
+            RankAdjacency adjacency = RankAdjacency.of( n, k );
+            StreamingAdjacency streaming = new StreamingAdjacency( n, k );
+            assertEquals( adjacency.middleRank.length, streaming.middleRankSize );
+            long[] sample = new long[ adjacency.sampleWords() ];
+            OffHeapBitset bitset = OffHeapBitset.allocate( streaming.middleRankSize );
+            for( int i = 0; i < 20; i++ ) {
+                // Mostly full or mostly empty samples too, so that X and Y are not always 0.
+                int inclusionNumerator = ImportanceSampling.toNumerator( new double[] { 0.1, 0.5, 0.9 }[ i % 3 ] );
+                ImportanceSampling.randomSample( random, adjacency.middleRank.length, inclusionNumerator, sample );
+                for( int w = 0; w < sample.length; w++ ) {
+                    bitset.setWord( w, sample[ w ] );
+                }
+                assertEquals( DedekindMonteCarlo.calculateX( adjacency, sample ), streaming.calculateX( bitset ) );
+                assertEquals( DedekindMonteCarlo.calculateY( adjacency, sample ), streaming.calculateY( bitset ) );
+                long middle = streaming.aboveMiddleSize / 3;
+                assertEquals( streaming.calculateX( bitset ),
+                    streaming.calculateX( bitset, 0, middle ) + streaming.calculateX( bitset, middle, streaming.aboveMiddleSize ) );
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingEstimation() throws IOException {
+        EstimationOptions options = new EstimationOptions();
+        options.samplingMode = SamplingMode.STREAMING;
+        options.n = 5;
+        options.nIterations = 1000;
+        options.nWorkers = 3;
+        options.seed = 1;
+        options.console = false;
+        options.sampleFile = Files.createTempDirectory( "dedekind" ).resolve( "sample" );
+        DedekindResult result = DedekindMonteCarlo.dedekindEstimation( options );
+        assertEquals( 1000, result.nIterations );
+        assertSame( DedekindMonteCarlo.StopReason.ITERATIONS, result.stopReason );
+        // The expectation of the estimator is 7574 for n = 5.
+        double standardError = result.relativeStandardError * result.estimate.doubleValue();
+        assertEquals( 7574, result.estimate.doubleValue(), 4 * standardError );
+
+        options.sampleFile = null;
+        assertEquals( result.estimate, DedekindMonteCarlo.dedekindEstimation( options ).estimate );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testStreamingAdjacencyTooLarge() {
+        new StreamingAdjacency( 64, 32 );
+    }
+
+    @Test
+    public void testSweep() {
+        List< EstimationOptions > jobs = Sweep.parseJobs( Arrays.asList(
+            "# two jobs with the same n",
+            "n=4 iterations=20000 seed=1 workers=2",
+            "",
+            "n=5 rse=0.05 seed=2",
+            "n=4 iterations=10000 seed=3" ) );
+        assertEquals( 3, jobs.size() );
+        assertEquals( Long.MAX_VALUE, jobs.get( 1 ).nIterations );
+        List< DedekindResult > results = Sweep.run( jobs, 2 );
+        assertEquals( 3, results.size() );
+        assertEquals( 4, results.get( 0 ).n );
+        assertEquals( 20000, results.get( 0 ).nIterations );
+        assertEquals( 5, results.get( 1 ).n );
+        assertSame( DedekindMonteCarlo.StopReason.PRECISION, results.get( 1 ).stopReason );
+        assertEquals( 10000, results.get( 2 ).nIterations );
+        assertSame( results.get( 0 ).korshunov, results.get( 2 ).korshunov );
+
+        // The same as a run on its own pool.
+        EstimationOptions options = new EstimationOptions();
+        options.n = 4;
+        options.nIterations = 20000;
+        options.seed = 1;
+        options.nWorkers = 2;
+        assertEquals( DedekindMonteCarlo.dedekindEstimation( options ).estimate, results.get( 0 ).estimate );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testSweepUnknownKey() {
+        Sweep.parseJobs( Arrays.asList( "n=4 iterations=1000 size=3" ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testSweepWithoutStoppingRule() {
+        Sweep.parseJobs( Arrays.asList( "n=4 seed=1" ) );
+    }
+
+    @Test
+    public void testTraceLevels() {
+        Trace.Level level = Trace.getLevel();
+        try {
+            Trace.setLevel( Trace.Level.DEBUG );
+            assertTrue( Trace.isEnabled( Trace.Level.INFO ) );
+            assertTrue( Trace.isEnabled( Trace.Level.DEBUG ) );
+            assertFalse( Trace.isEnabled( Trace.Level.TRACE ) );
+            Trace.setLevel( Trace.Level.OFF );
+            assertFalse( Trace.isEnabled( Trace.Level.INFO ) );
+            // A disabled message is not built.
+            Trace.info( () -> {
+                throw new AssertionError( "The message of a disabled level was built" );
+            } );
+            DedekindMonteCarlo.dedekindEstimation( 4, 1000 );
+        } finally {
+            Trace.setLevel( level );
+        }
+    }
+
+    @Test
+    public void testTraceProperties() {
+        assertSame( Trace.Level.INFO, Trace.parseLevel( null ) );
+        assertSame( Trace.Level.DEBUG, Trace.parseLevel( "debug" ) );
+        assertSame( Trace.Level.TRACE, Trace.parseLevel( " Trace " ) );
+        // An invalid level is reported, and the default is used.
+        assertSame( Trace.Level.INFO, Trace.parseLevel( "verbose" ) );
+        assertEquals( 1, Trace.parseEvery( null ) );
+        assertEquals( 1000, Trace.parseEvery( "1000" ) );
+        assertEquals( 1, Trace.parseEvery( "0" ) );
+        assertEquals( 1, Trace.parseEvery( "often" ) );
+    }
+
+    @Test
+    public void testTraceSampled() {
+        try {
+            Trace.setEvery( 1000 );
+            assertTrue( Trace.sampled( 0 ) );
+            assertFalse( Trace.sampled( 999 ) );
+            assertTrue( Trace.sampled( 2000 ) );
+        } finally {
+            Trace.setEvery( 1 );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testTraceEveryZero() {
+        Trace.setEvery( 0 );
+    }
+
+    @Test
+    public void testStandardDeviationFromSums() {
+        // samples { 2, 4, 4, 4, 5, 5, 7, 9 }
+        Apfloat expectedResult = new Apfloat( 2.1380899352994 );
+        Apfloat tolerance = expectedResult.multiply( new Apfloat( 0.00000000001 ) );
+        Apfloat result = DedekindMonteCarlo.standardDeviation( new Apint( 1 ), 8, new Apint( 40 ), new Apint( 232 ) );
+        checkResult( expectedResult, tolerance, result );
+    }
+
+    @Test
+    public void testXYHistogram() {
+        XYHistogram histogram = new XYHistogram();
+        histogram.add( 0, 0 );
+        histogram.add( 0, 0 );
+        histogram.add( 1, 2 );
+        // Beyond the dense part of the histogram and beyond 2^63.
+        histogram.add( 40, 30 );
+        XYHistogram other = new XYHistogram();
+        other.add( 1, 2 );
+        other.add( 100, 0 );
+        histogram.merge( other );
+        assertEquals( 6, histogram.count() );
+
+        assertEquals( 6, histogram.count() );
+        final long[] counts = new long[ 2 ];
+        histogram.forEach( ( X, Y, count ) -> {
+            counts[ 0 ] += count;
+            counts[ 1 ] += count * ( X + Y );
+        } );
+        assertArrayEquals( new long[] { 6, 0 + 0 + 3 + 70 + 3 + 100 }, counts );
+    }
+
+    @Test
+    public void testRandomSample() {
+        SplittableRandom random = new SplittableRandom( 1 );
+        long[] sample = new long[ 2 ];
+        long union = 0;
+        for( int i = 0; i < 100; i++ ) {
+            // 70 n-tuples in the middle rank when n = 8
+            DedekindMonteCarlo.randomSample( random, 70, sample );
+            assertEquals( 0, sample[ 1 ] & ~( ( 1L << 6 ) - 1 ) );
+            union |= sample[ 1 ];
+        }
+        assertEquals( ( 1L << 6 ) - 1, union );
+    }
+
+    @Test
+    public void testRandomStreams() {
+        for( String algorithm : new String[] { "SplittableRandom", "L64X128MixRandom", "Xoshiro256PlusPlus", "Random" } ) {
+            RandomGenerator[] first = DedekindMonteCarlo.randomStreams( algorithm, 7, 3 );
+            RandomGenerator[] second = DedekindMonteCarlo.randomStreams( algorithm, 7, 3 );
+            long[] firstValues = new long[ 3 ];
+            for( int i = 0; i < 3; i++ ) {
+                firstValues[ i ] = first[ i ].nextLong();
+                assertEquals( algorithm, firstValues[ i ], second[ i ].nextLong() );
+            }
+            assertTrue( algorithm, firstValues[ 0 ] != firstValues[ 1 ] && firstValues[ 1 ] != firstValues[ 2 ] );
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnknownRandomAlgorithm() {
+        DedekindMonteCarlo.randomStreams( "NoSuchRandom", 7, 3 );
     }
 
     @Test